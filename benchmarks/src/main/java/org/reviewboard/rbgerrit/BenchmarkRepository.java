@@ -0,0 +1,311 @@
+package org.reviewboard.rbgerrit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+
+/**
+ * A synthetic repository for benchmarks.
+ *
+ * The repository is written to a temporary directory and packed, so that
+ * objects are read the same way as in a real server-side repository.
+ *
+ * {@code master} has a linear first-parent history of the given depth. Each
+ * commit modifies one file, and a fraction of them merge in a side commit that
+ * modifies another. The last commit on {@code master} is never a merge.
+ *
+ * {@code huge} is a single commit on top of {@code master} that modifies every
+ * file.
+ *
+ * JGit's {@code core.streamFileThreshold} is lowered to
+ * {@link #STREAM_FILE_THRESHOLD}, so that blobs larger than that are streamed
+ * from the pack, as they are on a server with a small threshold, instead of
+ * being loaded into memory.
+ */
+public class BenchmarkRepository implements AutoCloseable {
+    static final String MASTER = "master";
+    static final String HUGE = "huge";
+
+    /**
+     * The size of the largest blob that JGit loads into memory, in bytes.
+     */
+    static final int STREAM_FILE_THRESHOLD = 1 << 20;
+
+    /**
+     * The number of directories that files are spread over.
+     */
+    private static final int DIRECTORIES = 16;
+
+    private final File directory;
+    private final Repository repository;
+    private final Random random = new Random(42);
+    private final ObjectId[] blobs;
+    private final ObjectId[] trees = new ObjectId[DIRECTORIES];
+    private final int blobSize;
+    private long time = 1500000000L;
+
+    /**
+     * Create a new synthetic repository.
+     * @param depth The number of commits on {@code master}.
+     * @param mergeRatio The fraction of commits on {@code master} that are
+     *                   merges.
+     * @param files The number of files in the tree.
+     * @param blobSize The size of each file in bytes.
+     * @return The repository.
+     * @throws IOException If an error occurs writing the repository.
+     */
+    public static BenchmarkRepository create(final int depth, final double mergeRatio, final int files,
+                                             final int blobSize) throws IOException {
+        final BenchmarkRepository repo = new BenchmarkRepository(files, blobSize);
+
+        try {
+            repo.populate(depth, mergeRatio);
+        } catch (final IOException e) {
+            repo.close();
+            throw e;
+        }
+
+        return repo;
+    }
+
+    /**
+     * Construct a new BenchmarkRepository.
+     * @param files The number of files in the tree.
+     * @param blobSize The size of each file in bytes.
+     * @throws IOException If an error occurs creating the repository.
+     */
+    private BenchmarkRepository(final int files, final int blobSize) throws IOException {
+        // The threshold is global to the JVM rather than per repository.
+        final WindowCacheConfig cacheConfig = new WindowCacheConfig();
+        cacheConfig.setStreamFileThreshold(STREAM_FILE_THRESHOLD);
+        cacheConfig.install();
+
+        this.directory = Files.createTempDirectory("rbgerrit-bench").toFile();
+        this.repository = new FileRepositoryBuilder().setGitDir(directory).build();
+        this.blobs = new ObjectId[files];
+        this.blobSize = blobSize;
+
+        repository.create(true);
+    }
+
+    /**
+     * Return the repository.
+     *
+     * The repository is shared between callers, so every caller that closes
+     * it must have opened it with {@link Repository#incrementOpen()} first.
+     * @return The repository.
+     */
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Return the ID of a blob in the tip of {@code master}.
+     * @param index The index of the file.
+     * @return The blob ID.
+     */
+    public ObjectId getBlob(final int index) {
+        return blobs[index];
+    }
+
+    /**
+     * Delete the repository.
+     */
+    @Override
+    public void close() {
+        repository.close();
+
+        try {
+            FileUtils.delete(directory, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+        } catch (final IOException e) {
+            // The directory is temporary, so there is nothing more to do.
+        }
+    }
+
+    /**
+     * Write the history of the repository and pack it.
+     * @param depth The number of commits on {@code master}.
+     * @param mergeRatio The fraction of commits on {@code master} that are
+     *                   merges.
+     * @throws IOException If an error occurs writing the repository.
+     */
+    private void populate(final int depth, final double mergeRatio) throws IOException {
+        ObjectId tip;
+
+        try (final ObjectInserter inserter = repository.newObjectInserter()) {
+            for (int i = 0; i < blobs.length; i++) {
+                blobs[i] = insertBlob(inserter);
+            }
+
+            for (int i = 0; i < DIRECTORIES; i++) {
+                trees[i] = insertDirectory(inserter, i);
+            }
+
+            tip = insertCommit(inserter, insertRoot(inserter), "Initial commit");
+
+            for (int i = 1; i < depth; i++) {
+                if (i < depth - 1 && random.nextDouble() < mergeRatio) {
+                    final ObjectId side = insertCommit(inserter, modify(inserter, random.nextInt(blobs.length)),
+                                                       "Side commit " + i, tip);
+                    tip = insertCommit(inserter, modify(inserter, random.nextInt(blobs.length)),
+                                       "Merge commit " + i, tip, side);
+                } else {
+                    tip = insertCommit(inserter, modify(inserter, random.nextInt(blobs.length)),
+                                       "Commit " + i, tip);
+                }
+            }
+
+            final ObjectId[] masterBlobs = blobs.clone();
+            ObjectId tree = null;
+
+            for (int i = 0; i < blobs.length; i++) {
+                tree = modify(inserter, i);
+            }
+
+            final ObjectId huge = tree == null ? tip : insertCommit(inserter, tree, "Modify every file", tip);
+            System.arraycopy(masterBlobs, 0, blobs, 0, blobs.length);
+
+            inserter.flush();
+
+            updateRef(MASTER, tip);
+            updateRef(HUGE, huge);
+        }
+
+        final RefUpdate head = repository.updateRef(Constants.HEAD);
+        head.link(Constants.R_HEADS + MASTER);
+
+        try {
+            Git.wrap(repository).gc().call();
+        } catch (final GitAPIException e) {
+            throw new IOException("Unable to pack the repository", e);
+        }
+    }
+
+    /**
+     * Replace the content of a file and rewrite the trees containing it.
+     * @param inserter The object inserter.
+     * @param index The index of the file.
+     * @return The ID of the new root tree.
+     * @throws IOException If an error occurs writing the objects.
+     */
+    private ObjectId modify(final ObjectInserter inserter, final int index) throws IOException {
+        blobs[index] = insertBlob(inserter);
+        trees[index % DIRECTORIES] = insertDirectory(inserter, index % DIRECTORIES);
+
+        return insertRoot(inserter);
+    }
+
+    /**
+     * Insert a blob of random lines of text.
+     * @param inserter The object inserter.
+     * @return The ID of the blob.
+     * @throws IOException If an error occurs writing the blob.
+     */
+    private ObjectId insertBlob(final ObjectInserter inserter) throws IOException {
+        final byte[] content = new byte[blobSize];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (i % 64 == 63) ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+
+        return inserter.insert(Constants.OBJ_BLOB, content);
+    }
+
+    /**
+     * Insert the tree of one directory.
+     * @param inserter The object inserter.
+     * @param dir The index of the directory.
+     * @return The ID of the tree, or {@code null} if the directory is empty.
+     * @throws IOException If an error occurs writing the tree.
+     */
+    private ObjectId insertDirectory(final ObjectInserter inserter, final int dir) throws IOException {
+        final TreeFormatter fmt = new TreeFormatter();
+        boolean empty = true;
+
+        for (int i = dir; i < blobs.length; i += DIRECTORIES) {
+            fmt.append(String.format("file%08d.txt", i), FileMode.REGULAR_FILE, blobs[i]);
+            empty = false;
+        }
+
+        return empty ? null : inserter.insert(fmt);
+    }
+
+    /**
+     * Insert the root tree.
+     * @param inserter The object inserter.
+     * @return The ID of the tree.
+     * @throws IOException If an error occurs writing the tree.
+     */
+    private ObjectId insertRoot(final ObjectInserter inserter) throws IOException {
+        final TreeFormatter fmt = new TreeFormatter();
+
+        for (int i = 0; i < DIRECTORIES; i++) {
+            if (trees[i] != null) {
+                fmt.append(String.format("dir%02d", i), FileMode.TREE, trees[i]);
+            }
+        }
+
+        return inserter.insert(fmt);
+    }
+
+    /**
+     * Insert a commit.
+     * @param inserter The object inserter.
+     * @param tree The ID of the commit's tree.
+     * @param message The commit message.
+     * @param parents The IDs of the commit's parents.
+     * @return The ID of the commit.
+     * @throws IOException If an error occurs writing the commit.
+     */
+    private ObjectId insertCommit(final ObjectInserter inserter, final ObjectId tree, final String message,
+                                  final ObjectId... parents) throws IOException {
+        final PersonIdent ident = new PersonIdent("Benchmark", "benchmark@example.com", (time++) * 1000, 0);
+        final CommitBuilder commit = new CommitBuilder();
+
+        commit.setTreeId(tree);
+        commit.setParentIds(parents);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setMessage(message + "\n");
+
+        return inserter.insert(commit);
+    }
+
+    /**
+     * Point a branch at a commit.
+     * @param branch The name of the branch.
+     * @param id The ID of the commit.
+     * @throws IOException If the ref cannot be updated.
+     */
+    private void updateRef(final String branch, final ObjectId id) throws IOException {
+        final RefUpdate update = repository.updateRef(Constants.R_HEADS + branch);
+        update.setNewObjectId(id);
+
+        switch (update.forceUpdate()) {
+            case NEW:
+            case FORCED:
+            case NO_CHANGE:
+                break;
+
+            default:
+                throw new IOException(String.format("Unable to update %s", branch));
+        }
+    }
+}
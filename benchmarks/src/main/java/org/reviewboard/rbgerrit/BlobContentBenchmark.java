@@ -0,0 +1,100 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.project.ProjectResource;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for serving blob content.
+ *
+ * Small blobs are loaded into memory in full, while blobs larger than both
+ * {@link BenchmarkRepository#STREAM_FILE_THRESHOLD} and
+ * {@link GetBlobContent}'s in-memory limit are streamed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class BlobContentBenchmark {
+    @Param({"4096", "16777216"})
+    public int blobSize;
+
+    @Param({"false", "true"})
+    public boolean raw;
+
+    private BenchmarkRepository repo;
+    private Configuration config;
+    private Metrics metrics;
+    private ProjectResource projectResource;
+    private ObjectId blobId;
+
+    /**
+     * Create the repository and the services used by the view.
+     * @throws IOException If an error occurs creating the repository.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        repo = BenchmarkRepository.create(1, 0, 1, blobSize);
+        config = Fixtures.configuration();
+        metrics = Fixtures.metrics();
+        projectResource = Fixtures.projectResource();
+        blobId = repo.getBlob(0);
+    }
+
+    /**
+     * Delete the repository.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repo.close();
+    }
+
+    /**
+     * Open the blob and write its content.
+     * @return The number of bytes written.
+     * @throws IOException If an error occurs reading the blob.
+     * @throws RestApiException If the view fails.
+     */
+    @Benchmark
+    public long content() throws IOException, RestApiException {
+        final GetBlobContent view = new GetBlobContent(config, metrics);
+        final CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+
+        view.setRaw(raw);
+
+        try (final ObjectReader reader = repo.getRepository().newObjectReader()) {
+            final BlobResource blob = new BlobResource(projectResource, blobId,
+                                                       reader.open(blobId, Constants.OBJ_BLOB));
+
+            try (final BinaryResult result = view.apply(blob).value()) {
+                result.writeTo(out);
+            }
+        }
+
+        return out.getCount();
+    }
+}
@@ -0,0 +1,119 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.extensions.restapi.IdString;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestResource;
+import com.google.gerrit.server.project.ProjectResource;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for resolving blob IDs to blob resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class BlobsBenchmark {
+    private static final IdString MISSING = IdString.fromDecoded("0123456789abcdef0123456789abcdef01234567");
+
+    @Param({"10000"})
+    public int files;
+
+    @Param({"false", "true"})
+    public boolean cacheMisses;
+
+    private BenchmarkRepository repo;
+    private BlobsCollection blobs;
+    private ProjectResource projectResource;
+    private IdString fullId;
+    private IdString abbreviatedId;
+
+    /**
+     * Create the repository and the collection.
+     * @throws IOException If an error occurs creating the repository.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        repo = BenchmarkRepository.create(1, 0, files, 1024);
+        projectResource = Fixtures.projectResource();
+
+        // A cache with no capacity never remembers a miss.
+        blobs = new BlobsCollection(
+            DynamicMap.emptyMap(),
+            Fixtures.repoManager(repo.getRepository()),
+            new MissingBlobCache(
+                CacheBuilder.newBuilder()
+                    .maximumSize(cacheMisses ? 10000 : 0)
+                    .build()),
+            Fixtures.metrics());
+
+        final ObjectId id = repo.getBlob(files / 2);
+        fullId = IdString.fromDecoded(id.name());
+        abbreviatedId = IdString.fromDecoded(id.abbreviate(12).name());
+    }
+
+    /**
+     * Delete the repository.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repo.close();
+    }
+
+    /**
+     * Look up an existing blob by its full ID.
+     * @return The blob.
+     * @throws RestApiException If the blob is not found.
+     */
+    @Benchmark
+    public BlobResource hit() throws RestApiException {
+        return blobs.parse(projectResource, fullId);
+    }
+
+    /**
+     * Look up an existing blob by an abbreviated ID.
+     * @return The blob.
+     * @throws RestApiException If the blob is not found.
+     */
+    @Benchmark
+    public BlobResource abbreviatedHit() throws RestApiException {
+        return blobs.parse(projectResource, abbreviatedId);
+    }
+
+    /**
+     * Look up a blob that does not exist.
+     * @return The resulting error.
+     * @throws RestApiException If the lookup fails for any other reason.
+     */
+    @Benchmark
+    public Object miss() throws RestApiException {
+        try {
+            final RestResource found = blobs.parse(projectResource, MISSING);
+            throw new IllegalStateException("Unexpectedly found " + found);
+        } catch (final ResourceNotFoundException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for paging through {@code all-commits}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CommitListBenchmark {
+    @Param({"10000"})
+    public int depth;
+
+    @Param({"0.1"})
+    public double mergeRatio;
+
+    @Param({"false", "true"})
+    public boolean firstParent;
+
+    @Param({"30"})
+    public int limit;
+
+    @Param({"20"})
+    public int pages;
+
+    /**
+     * The fields to request, or an empty string for the default fields.
+     */
+    @Param({"", "revision"})
+    public String fields;
+
+    private BenchmarkRepository repo;
+    private GitRepositoryManager repoManager;
+    private Configuration config;
+    private CommitIndex commitIndex;
+    private Metrics metrics;
+    private ProjectResource projectResource;
+
+    /**
+     * Create the repository and the services used by the view.
+     * @throws IOException If an error occurs creating the repository.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        repo = BenchmarkRepository.create(depth, mergeRatio, 100, 1024);
+        repoManager = Fixtures.repoManager(repo.getRepository());
+        config = Fixtures.configuration();
+        metrics = Fixtures.metrics();
+        projectResource = Fixtures.projectResource();
+        commitIndex = new CommitIndex(
+            CacheBuilder.newBuilder()
+                .maximumWeight(1000000)
+                .weigher(new CommitIndex.BranchIndexWeigher())
+                .build(),
+            repoManager);
+
+        // The index is built in the background after the first request, well
+        // before the warmup iterations end.
+        commitIndex.start();
+    }
+
+    /**
+     * Delete the repository.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        commitIndex.stop();
+        repo.close();
+    }
+
+    /**
+     * Fetch the first page of commits.
+     * @return The commits.
+     * @throws RestApiException If the view fails.
+     */
+    @Benchmark
+    public Collection<CommitListResource.CommitInfo> firstPage() throws RestApiException {
+        return newView(null).apply(projectResource).value();
+    }
+
+    /**
+     * Page through the history by following the cursor of each page.
+     * @return The commits.
+     * @throws RestApiException If the view fails.
+     */
+    @Benchmark
+    public List<CommitListResource.CommitInfo> followCursor() throws RestApiException {
+        final List<CommitListResource.CommitInfo> all = new ArrayList<>(pages * limit);
+        String cursor = null;
+
+        for (int i = 0; i < pages; i++) {
+            final List<CommitListResource.CommitInfo> page =
+                new ArrayList<>(newView(cursor).apply(projectResource).value());
+
+            if (page.isEmpty()) {
+                break;
+            }
+
+            all.addAll(page);
+            cursor = page.get(page.size() - 1)._cursor;
+
+            if (cursor == null) {
+                break;
+            }
+        }
+
+        return all;
+    }
+
+    /**
+     * Construct the view for a request.
+     * @param cursor The cursor to continue from, or {@code null} for the
+     *               first page.
+     * @return The view.
+     */
+    private CommitListResource newView(final String cursor) {
+        final CommitListResource view = new CommitListResource(repoManager, config, commitIndex, metrics);
+
+        view.setFirstParent(firstParent);
+        view.setLimit(limit);
+
+        if (!fields.isEmpty()) {
+            view.setFields(fields);
+        }
+
+        if (cursor != null) {
+            view.setCursor(cursor);
+        }
+
+        return view;
+    }
+}
@@ -0,0 +1,118 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.CommitResource;
+import com.google.gerrit.server.project.ProjectControl;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for formatting commit diffs.
+ *
+ * The {@code master} commit modifies a single file, while the {@code huge}
+ * commit modifies every file in the tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class DiffBenchmark {
+    @Param({BenchmarkRepository.MASTER, BenchmarkRepository.HUGE})
+    public String commit;
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"4096"})
+    public int blobSize;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private BenchmarkRepository repo;
+    private GitRepositoryManager repoManager;
+    private Configuration config;
+    private DiffCache diffCache;
+    private DiffThrottle throttle;
+    private Metrics metrics;
+    private CommitResource commitResource;
+
+    /**
+     * Create the repository and the services used by the view.
+     * @throws IOException If an error occurs creating the repository.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        repo = BenchmarkRepository.create(2, 0, files, blobSize);
+        repoManager = Fixtures.repoManager(repo.getRepository());
+        config = Fixtures.configuration();
+        metrics = Fixtures.metrics();
+        throttle = new DiffThrottle(config);
+
+        // A cache with no capacity never returns an entry, so every request
+        // formats the diff.
+        diffCache = new DiffCache(
+            CacheBuilder.newBuilder()
+                .maximumWeight(cached ? 1L << 30 : 0)
+                .weigher(new DiffCache.DiffWeigher())
+                .build());
+
+        final ProjectControl control = Fixtures.projectResource().getControl();
+
+        try (final RevWalk walk = new RevWalk(repo.getRepository())) {
+            commitResource = new CommitResource(
+                control,
+                walk.parseCommit(repo.getRepository().resolve(Constants.R_HEADS + commit)));
+        }
+    }
+
+    /**
+     * Delete the repository.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repo.close();
+    }
+
+    /**
+     * Compute and write the diff of the commit.
+     * @return The number of bytes written.
+     * @throws IOException If an error occurs writing the diff.
+     * @throws RestApiException If the view fails.
+     */
+    @Benchmark
+    public long diff() throws IOException, RestApiException {
+        final DiffResource view = new DiffResource(repoManager, config, diffCache, throttle, metrics);
+        final CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+
+        try (final BinaryResult result = view.apply(commitResource).value()) {
+            result.writeTo(out);
+        }
+
+        return out.getCount();
+    }
+}
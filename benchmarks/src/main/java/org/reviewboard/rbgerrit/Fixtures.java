@@ -0,0 +1,98 @@
+package org.reviewboard.rbgerrit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.project.ProjectResource;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Repository;
+
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+
+/**
+ * Stand-ins for the Gerrit services that the plugin's views depend on.
+ *
+ * Only the services the views actually call are provided, so that the
+ * benchmarks measure the plugin rather than Gerrit.
+ */
+final class Fixtures {
+    static final Project.NameKey PROJECT = new Project.NameKey("benchmark");
+
+    private Fixtures() {
+    }
+
+    /**
+     * Return metrics that are not reported anywhere.
+     * @return The metrics.
+     */
+    static Metrics metrics() {
+        return new Metrics(new DisabledMetricMaker());
+    }
+
+    /**
+     * Return the default plugin configuration.
+     * @return The configuration.
+     */
+    static Configuration configuration() {
+        // Every setting is left unset, so each lookup returns its default.
+        // String lists have no default argument, and are empty.
+        final PluginConfig cfg = mock(PluginConfig.class, invocation ->
+            invocation.getMethod().getReturnType() == String[].class ? new String[0] : invocation.getArgument(1));
+        final PluginConfigFactory cfgFactory = mock(PluginConfigFactory.class);
+
+        when(cfgFactory.getFromGerritConfig("gerrit-reviewboard")).thenReturn(cfg);
+
+        return new Configuration(cfgFactory, "gerrit-reviewboard");
+    }
+
+    /**
+     * Return the project resource for the benchmark project.
+     * @return The project resource.
+     */
+    static ProjectResource projectResource() {
+        final ProjectControl control = mock(ProjectControl.class);
+
+        when(control.getProject()).thenReturn(new Project(PROJECT));
+
+        return new ProjectResource(control);
+    }
+
+    /**
+     * Return a repository manager that serves a single repository.
+     * @param repository The repository of the benchmark project.
+     * @return The repository manager.
+     */
+    static GitRepositoryManager repoManager(final Repository repository) {
+        return new GitRepositoryManager() {
+            @Override
+            public Repository openRepository(final Project.NameKey name) throws RepositoryNotFoundException {
+                if (!PROJECT.equals(name)) {
+                    throw new RepositoryNotFoundException(name.get());
+                }
+
+                // Callers close the repository when they are done with it.
+                repository.incrementOpen();
+                return repository;
+            }
+
+            @Override
+            public Repository createRepository(final Project.NameKey name) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public SortedSet<Project.NameKey> list() {
+                return new TreeSet<>(Collections.singleton(PROJECT));
+            }
+        };
+    }
+}
@@ -0,0 +1,50 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.io.ByteStreams;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Detects binary blobs.
+ *
+ * Blobs that are small enough to have been loaded into memory are checked
+ * in place. Only the start of larger blobs is read, so that they are never
+ * loaded in full just to classify them.
+ */
+final class BinaryDetector {
+    /**
+     * The number of bytes at the start of a blob that are checked for binary
+     * content. This matches the amount checked by Git.
+     */
+    private static final int SAMPLE_SIZE = 8000;
+
+    private BinaryDetector() {
+    }
+
+    /**
+     * Return whether a blob looks binary.
+     * @param loader The loader for the blob.
+     * @return Whether or not the start of the blob contains binary content.
+     * @throws IOException If an error occurs reading the blob.
+     */
+    static boolean isBinary(final ObjectLoader loader) throws IOException {
+        if (!loader.isLarge()) {
+            final byte[] content = loader.getCachedBytes();
+
+            return RawText.isBinary(content, Math.min(SAMPLE_SIZE, content.length));
+        }
+
+        final byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, loader.getSize())];
+        final int length;
+
+        try (final InputStream in = loader.openStream()) {
+            length = ByteStreams.read(in, sample, 0, sample.length);
+        }
+
+        return RawText.isBinary(sample, length);
+    }
+}
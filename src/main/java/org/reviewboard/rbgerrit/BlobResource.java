@@ -5,6 +5,7 @@ import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectResource;
 import com.google.inject.TypeLiteral;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
 
 
 /**
@@ -17,6 +18,11 @@ import org.eclipse.jgit.lib.ObjectId;
  * {@link ObjectId} exists in the repository. Cases where it doesn't exist
  * (or is a different object type) are caught in the parent collection:
  * {@link BlobsCollection}.
+ *
+ * The {@link ObjectLoader} used to check the blob's existence is carried on
+ * the resource, so that child views do not need to open the repository or
+ * look the blob up again. Small blobs are held in memory by the loader, while
+ * large blobs are streamed from the object store on demand.
  */
 public class BlobResource implements RestResource {
     /**
@@ -28,15 +34,18 @@ public class BlobResource implements RestResource {
 
     private final ProjectResource projectResource;
     private final ObjectId objectId;
+    private final ObjectLoader loader;
 
     /**
      * Construct a BlobResource.
      * @param projectResource The parent project resource.
      * @param objectId The object ID of the file.
+     * @param loader The loader for the blob.
      */
-    BlobResource(final ProjectResource projectResource, final ObjectId objectId) {
+    BlobResource(final ProjectResource projectResource, final ObjectId objectId, final ObjectLoader loader) {
         this.projectResource = projectResource;
         this.objectId = objectId;
+        this.loader = loader;
     }
 
     /**
@@ -54,4 +63,20 @@ public class BlobResource implements RestResource {
     public ObjectId getObjectId() {
         return objectId;
     }
+
+    /**
+     * Return the loader for the blob.
+     * @return The loader for the blob.
+     */
+    public ObjectLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * Return the size of the blob.
+     * @return The size of the blob in bytes.
+     */
+    public long getSize() {
+        return loader.getSize();
+    }
 }
@@ -1,5 +1,6 @@
 package org.reviewboard.rbgerrit;
 
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.restapi.*;
@@ -8,10 +9,13 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.ProjectResource;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.InvalidObjectIdException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,20 +35,31 @@ public class BlobsCollection implements ChildCollection<ProjectResource, BlobRes
 
     private final DynamicMap<RestView<BlobResource>> views;
     private final GitRepositoryManager repoManager;
+    private final MissingBlobCache missingBlobs;
+    private final Metrics metrics;
 
     /**
      * Construct a new BlobsCollection
      * @param views The child views of this collection.
      * @param repoManager The repository manager.
+     * @param missingBlobs The cache of blobs known to be missing.
+     * @param metrics The plugin metrics.
      */
     @Inject
-    public BlobsCollection(final DynamicMap<RestView<BlobResource>> views, final GitRepositoryManager repoManager) {
+    public BlobsCollection(final DynamicMap<RestView<BlobResource>> views, final GitRepositoryManager repoManager,
+                           final MissingBlobCache missingBlobs, final Metrics metrics) {
         this.views = views;
         this.repoManager = repoManager;
+        this.missingBlobs = missingBlobs;
+        this.metrics = metrics;
     }
 
     /**
      * Parse a blob ID into a BlobResource.
+     *
+     * The blob is opened with a single lookup, and its loader is passed on to
+     * the resource for use by the child views. Blobs that were recently found
+     * to be missing are rejected without opening the repository.
      * @param parentResource The parent ProjectResource.
      * @param id The url fragment representing the blob ID.
      * @return The child resource.
@@ -53,21 +68,52 @@ public class BlobsCollection implements ChildCollection<ProjectResource, BlobRes
      */
     @Override
     public BlobResource parse(final ProjectResource parentResource, final IdString id) throws RestApiException {
+        final long start = System.nanoTime();
         final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
 
-        try (final Repository repository = repoManager.openRepository(projectName)) {
-            final ObjectId objId = repository.resolve(String.format("%s^{blob}", id.get()));
+        try {
+            return parse(parentResource, projectName, id);
+        } finally {
+            metrics.recordLatency(Metrics.BLOBS, projectName, start);
+        }
+    }
+
+    /**
+     * Parse a blob ID into a BlobResource.
+     * @param parentResource The parent ProjectResource.
+     * @param projectName The name of the project.
+     * @param id The url fragment representing the blob ID.
+     * @return The child resource.
+     * @throws RestApiException Thrown when an error occurs reading the repository or if the given ID is invalid for any
+     *                          reason.
+     */
+    private BlobResource parse(final ProjectResource parentResource, final Project.NameKey projectName,
+                               final IdString id) throws RestApiException {
+        final long generation = missingBlobs.getGeneration(projectName);
+        final boolean knownMissing = missingBlobs.isMissing(projectName, id.get(), generation);
+
+        metrics.recordCacheLookup(MissingBlobCache.NAME, knownMissing);
+
+        if (knownMissing) {
+            throw notFound(projectName, id);
+        }
+
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final ObjectReader reader = repository.newObjectReader()) {
+            final ObjectId objId = AbbreviatedObjectId.isId(id.get())
+                ? LookupBlobs.resolveId(reader, id.get())
+                : repository.resolve(id.get());
 
             if (objId == null) {
-                throw new MissingObjectException(ObjectId.fromString(id.get()), "blob");
+                missingBlobs.add(projectName, id.get(), generation);
+                throw notFound(projectName, id);
             }
 
-            return new BlobResource(parentResource, objId);
-        } catch (final MissingObjectException | IncorrectObjectTypeException | InvalidObjectIdException e) {
-            throw new ResourceNotFoundException(String.format(
-                "No blob with id '%s' found in the repository.'",
-                id.get()
-            ));
+            return new BlobResource(parentResource, objId, reader.open(objId, OBJ_BLOB));
+        } catch (final MissingObjectException | IncorrectObjectTypeException | AmbiguousObjectException
+                       | RevisionSyntaxException e) {
+            missingBlobs.add(projectName, id.get(), generation);
+            throw notFound(projectName, id);
         } catch (final IOException e) {
             log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
 
@@ -75,6 +121,21 @@ public class BlobsCollection implements ChildCollection<ProjectResource, BlobRes
         }
     }
 
+    /**
+     * Return the error for a blob that does not exist.
+     * @param projectName The name of the project.
+     * @param id The url fragment representing the blob ID.
+     * @return The error.
+     */
+    private ResourceNotFoundException notFound(final Project.NameKey projectName, final IdString id) {
+        metrics.recordNotFound(Metrics.BLOBS, projectName);
+
+        return new ResourceNotFoundException(String.format(
+            "No blob with id '%s' found in the repository.'",
+            id.get()
+        ));
+    }
+
     /**
      * Do not return a list of all members of the collection.
      *
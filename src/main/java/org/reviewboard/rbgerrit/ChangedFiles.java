@@ -0,0 +1,72 @@
+package org.reviewboard.rbgerrit;
+
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Lists the files changed by commits.
+ *
+ * Only the trees of each commit and its parent are compared, so no patch
+ * text is produced and no blob content is read, except to detect renames. A
+ * single tree walk and object reader are reused for every commit.
+ *
+ * Renames are detected when enabled by the repository's
+ * {@code diff.renames} setting, as they are for diffs.
+ */
+public class ChangedFiles {
+    private final TreeWalk treeWalk;
+    private final RenameDetector renameDetector;
+
+    /**
+     * Construct a new ChangedFiles.
+     * @param repository The repository containing the commits.
+     * @param reader The reader to read trees with.
+     */
+    public ChangedFiles(final Repository repository, final ObjectReader reader) {
+        treeWalk = new TreeWalk(reader);
+        treeWalk.setRecursive(true);
+        treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+        renameDetector = repository.getConfig().get(DiffConfig.KEY).isRenameDetectionEnabled()
+            ? new RenameDetector(repository)
+            : null;
+    }
+
+    /**
+     * List the files changed by a commit that has a single parent.
+     * @param walk The walk that parsed the commit.
+     * @param commit The commit.
+     * @return The changed files.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    public List<DiffEntry> list(final RevWalk walk, final RevCommit commit) throws IOException {
+        assert commit.getParentCount() == 1;
+
+        final RevCommit parent = walk.parseCommit(commit.getParent(0));
+
+        treeWalk.reset(parent.getTree(), commit.getTree());
+
+        final List<DiffEntry> entries = DiffEntry.scan(treeWalk);
+
+        if (renameDetector == null) {
+            return entries;
+        }
+
+        renameDetector.reset();
+        renameDetector.addAll(entries);
+
+        return renameDetector.compute(treeWalk.getObjectReader(), NullProgressMonitor.INSTANCE);
+    }
+}
@@ -0,0 +1,509 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * An index of the first-parent, non-merge history of branches.
+ *
+ * Each indexed branch records its non-merge commits along the first-parent
+ * chain, together with the position of every commit on that chain. This
+ * allows a page of history at any depth to be returned in time proportional
+ * to the size of the page.
+ *
+ * Indexes are only ever built and updated on a background thread, so neither
+ * requests nor ref updates wait for history to be walked. A branch is indexed
+ * after it is first paged through, and is kept up to date incrementally as it
+ * moves forward. When a branch is rewound or rewritten, its index is dropped
+ * and rebuilt after the next request. Requests for commits that are not
+ * indexed yet are answered by a live walk.
+ */
+@Singleton
+public class CommitIndex implements GitReferenceUpdatedListener, LifecycleListener {
+    static final String NAME = "commit_index";
+
+    /**
+     * The default memory limit of the index, in commits.
+     */
+    private static final long DEFAULT_MAX_COMMITS = 1000000;
+
+    /**
+     * The maximum number of commits to walk when updating an index.
+     *
+     * Branches that move further than this are re-indexed instead.
+     */
+    private static final int MAX_UPDATE_COMMITS = 10000;
+
+    /**
+     * The maximum number of branches waiting to be indexed.
+     */
+    private static final int MAX_QUEUED_REFRESHES = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(CommitIndex.class);
+
+    private final Cache<Key, BranchIndex> cache;
+    private final GitRepositoryManager repoManager;
+    private final Set<Key> refreshing = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Return the module that registers the index cache.
+     * @return The module.
+     */
+    static CacheModule module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+                cache(NAME, Key.class, BranchIndex.class)
+                    .maximumWeight(DEFAULT_MAX_COMMITS)
+                    .weigher(BranchIndexWeigher.class);
+            }
+        };
+    }
+
+    /**
+     * Construct the CommitIndex.
+     * @param cache The cache holding the branch indexes.
+     * @param repoManager The repository manager.
+     */
+    @Inject
+    CommitIndex(@Named(NAME) final Cache<Key, BranchIndex> cache, final GitRepositoryManager repoManager) {
+        this.cache = cache;
+        this.repoManager = repoManager;
+    }
+
+    /**
+     * Start the background thread that builds and updates indexes.
+     */
+    @Override
+    public synchronized void start() {
+        executor = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_REFRESHES),
+            new ThreadFactoryBuilder()
+                .setNameFormat("gerrit-reviewboard-commit-index-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Return a page of first-parent, non-merge history.
+     *
+     * The start commit is looked up in the indexes of the project's branches.
+     * Any index containing it gives the same page, since the first-parent
+     * history of a commit never changes. If the start is a branch whose index
+     * is missing or out of date, the index is refreshed in the background.
+     * @param projectName The name of the project.
+     * @param branch The branch being paged through, or {@code null} if the
+     *               start is not a branch.
+     * @param start The commit to start at.
+     * @param skip The number of non-merge commits to skip.
+     * @param limit The maximum number of commits to return.
+     * @return The IDs of the commits in the page, newest first, or
+     *         {@code null} if the start commit is not indexed.
+     */
+    List<ObjectId> page(final Project.NameKey projectName, final Ref branch, final ObjectId start, final int skip,
+                        final int limit) {
+        if (branch != null && branch.getObjectId() != null) {
+            final Key key = new Key(projectName.get(), branch.getName());
+            final BranchIndex index = cache.getIfPresent(key);
+
+            if (index == null || !branch.getObjectId().equals(index.getTip())) {
+                refresh(projectName, key, branch.getObjectId());
+            }
+
+            final List<ObjectId> page = index == null ? null : index.page(start, skip, limit);
+
+            if (page != null) {
+                return page;
+            }
+        }
+
+        for (final Map.Entry<Key, BranchIndex> entry : cache.asMap().entrySet()) {
+            if (entry.getKey().project.equals(projectName.get())) {
+                final List<ObjectId> page = entry.getValue().page(start, skip, limit);
+
+                if (page != null) {
+                    return page;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Update the index of a branch when it moves.
+     *
+     * Fast-forwards are applied incrementally in the background. Any other
+     * change drops the index of the branch.
+     * @param event The ref update event.
+     */
+    @Override
+    public void onGitReferenceUpdated(final Event event) {
+        final Key key = new Key(event.getProjectName(), event.getRefName());
+
+        if (cache.getIfPresent(key) == null) {
+            return;
+        } else if (event.isDelete() || event.isNonFastForward()) {
+            cache.invalidate(key);
+            return;
+        }
+
+        refresh(new Project.NameKey(event.getProjectName()), key, ObjectId.fromString(event.getNewObjectId()));
+    }
+
+    /**
+     * Queue a branch to have its index built or brought up to date.
+     *
+     * Nothing is queued if the branch is already queued, or if the queue is
+     * full. The index is then refreshed when it is next found to be out of
+     * date.
+     * @param projectName The name of the project.
+     * @param key The key of the branch index.
+     * @param tip The commit the branch points to.
+     */
+    private void refresh(final Project.NameKey projectName, final Key key, final ObjectId tip) {
+        final ThreadPoolExecutor executor;
+
+        synchronized (this) {
+            executor = this.executor;
+        }
+
+        if (executor == null || !refreshing.add(key)) {
+            return;
+        }
+
+        final ObjectId newTip = tip.copy();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    refreshNow(projectName, key, newTip);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Build or bring up to date the index of a branch.
+     *
+     * If the index cannot be updated incrementally, it is rebuilt. An index
+     * that was updated in place is stored again, so that the cache weighs it
+     * by its new size.
+     * @param projectName The name of the project.
+     * @param key The key of the branch index.
+     * @param tip The commit the branch points to.
+     */
+    private void refreshNow(final Project.NameKey projectName, final Key key, final ObjectId tip) {
+        try (final Repository repository = repoManager.openRepository(projectName)) {
+            final BranchIndex index = cache.getIfPresent(key);
+
+            if (index == null || !index.update(repository, tip)) {
+                cache.put(key, BranchIndex.build(repository, tip));
+            } else {
+                // This does nothing if the index was dropped meanwhile.
+                cache.asMap().replace(key, index, index);
+            }
+        } catch (final IOException e) {
+            log.warn(String.format("Could not update commit index of '%s' in project '%s': %s",
+                                   key.ref, projectName.get(), e), e);
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * The key for a branch index.
+     */
+    static class Key {
+        private final String project;
+        private final String ref;
+
+        /**
+         * Construct a new Key.
+         * @param project The name of the project.
+         * @param ref The full name of the branch.
+         */
+        Key(final String project, final String ref) {
+            this.project = project;
+            this.ref = ref;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return project.equals(other.project) && ref.equals(other.ref);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, ref);
+        }
+    }
+
+    /**
+     * Weighs branch indexes by the number of commits they hold.
+     */
+    static class BranchIndexWeigher implements Weigher<Key, BranchIndex> {
+        @Override
+        public int weigh(final Key key, final BranchIndex value) {
+            return Math.max(1, value.size());
+        }
+    }
+
+    /**
+     * A commit on the first-parent chain of a branch.
+     */
+    private static class Position extends ObjectIdOwnerMap.Entry {
+        /**
+         * The number of non-merge commits on the chain up to and including
+         * this commit.
+         */
+        private final int count;
+
+        /**
+         * Construct a new Position.
+         * @param id The ID of the commit.
+         * @param count The number of non-merge commits on the chain up to and
+         *              including this commit.
+         */
+        Position(final AnyObjectId id, final int count) {
+            super(id);
+            this.count = count;
+        }
+    }
+
+    /**
+     * The index of a single branch.
+     */
+    static class BranchIndex {
+        /**
+         * The non-merge commits on the first-parent chain, oldest first.
+         */
+        private final List<ObjectId> nonMerge = new ArrayList<>();
+
+        /**
+         * Every commit on the first-parent chain.
+         */
+        private final ObjectIdOwnerMap<Position> positions = new ObjectIdOwnerMap<>();
+
+        private ObjectId tip;
+
+        /**
+         * Build the index of a branch by walking its entire first-parent
+         * chain.
+         * @param repository The repository.
+         * @param tip The commit the branch points to.
+         * @return The index.
+         * @throws IOException If an error occurs reading the repository.
+         */
+        static BranchIndex build(final Repository repository, final ObjectId tip) throws IOException {
+            final BranchIndex index = new BranchIndex();
+
+            try (final RevWalk walk = new RevWalk(repository)) {
+                walk.setRetainBody(false);
+                index.append(firstParentChain(walk, tip, null, Integer.MAX_VALUE));
+            }
+
+            index.tip = tip.copy();
+            return index;
+        }
+
+        /**
+         * Return the commit the branch pointed to when last indexed.
+         * @return The ID of the commit.
+         */
+        synchronized ObjectId getTip() {
+            return tip;
+        }
+
+        /**
+         * Bring the index up to date with a new tip of the branch.
+         *
+         * The new commits are walked without holding the lock of the index,
+         * so pages can still be served from it in the meantime.
+         * @param repository The repository.
+         * @param newTip The commit the branch now points to.
+         * @return Whether or not the index could be updated. If not, the
+         *         branch was rewound or rewritten, or moved too far, and the
+         *         index must be rebuilt.
+         * @throws IOException If an error occurs reading the repository.
+         */
+        boolean update(final Repository repository, final ObjectId newTip) throws IOException {
+            final ObjectId oldTip;
+
+            synchronized (this) {
+                if (newTip.equals(tip)) {
+                    return true;
+                } else if (positions.contains(newTip)) {
+                    return false;
+                }
+
+                oldTip = tip;
+            }
+
+            final List<RevCommit> chain;
+
+            try (final RevWalk walk = new RevWalk(repository)) {
+                walk.setRetainBody(false);
+                chain = firstParentChain(walk, newTip, oldTip, MAX_UPDATE_COMMITS);
+            }
+
+            if (chain == null) {
+                return false;
+            }
+
+            synchronized (this) {
+                if (!oldTip.equals(tip)) {
+                    // Another update got here first.
+                    return false;
+                }
+
+                append(chain);
+                tip = newTip.copy();
+            }
+
+            return true;
+        }
+
+        /**
+         * Return a page of history starting at a commit.
+         * @param start The commit to start at.
+         * @param skip The number of non-merge commits to skip.
+         * @param limit The maximum number of commits to return.
+         * @return The IDs of the commits, newest first, or {@code null} if the
+         *         start commit is not on the first-parent chain.
+         */
+        synchronized List<ObjectId> page(final ObjectId start, final int skip, final int limit) {
+            final Position position = positions.get(start);
+
+            if (position == null) {
+                return null;
+            }
+
+            final int first = position.count - 1 - skip;
+            final int last = Math.max(0, first - limit + 1);
+
+            if (first < 0) {
+                return Collections.emptyList();
+            }
+
+            final List<ObjectId> page = new ArrayList<>(first - last + 1);
+
+            for (int i = first; i >= last; i--) {
+                page.add(nonMerge.get(i));
+            }
+
+            return page;
+        }
+
+        /**
+         * Return the number of commits in the index.
+         * @return The number of commits in the index.
+         */
+        synchronized int size() {
+            return positions.size();
+        }
+
+        /**
+         * Append commits to the end of the chain.
+         * @param chain The commits to append, newest first.
+         */
+        private void append(final List<RevCommit> chain) {
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                final RevCommit commit = chain.get(i);
+
+                if (commit.getParentCount() == 1) {
+                    nonMerge.add(commit.copy());
+                }
+
+                positions.add(new Position(commit, nonMerge.size()));
+            }
+        }
+
+        /**
+         * Walk the first-parent chain from a commit.
+         * @param walk The walk to use for parsing commits.
+         * @param from The commit to start at.
+         * @param until The commit to stop at (exclusive), or {@code null} to
+         *              walk to the root commit.
+         * @param max The maximum number of commits to walk.
+         * @return The commits on the chain, newest first, or {@code null} if
+         *         {@code until} was not reached within {@code max} commits.
+         * @throws IOException If an error occurs reading the repository.
+         */
+        private static List<RevCommit> firstParentChain(final RevWalk walk, final ObjectId from,
+                                                        final ObjectId until, final int max)
+            throws IOException {
+            final List<RevCommit> chain = new ArrayList<>();
+            RevCommit commit = walk.parseCommit(from);
+
+            while (!commit.equals(until)) {
+                if (chain.size() >= max) {
+                    return null;
+                }
+
+                chain.add(commit);
+
+                if (commit.getParentCount() == 0) {
+                    return until == null ? chain : null;
+                }
+
+                commit = walk.parseCommit(commit.getParent(0));
+            }
+
+            return chain;
+        }
+    }
+}
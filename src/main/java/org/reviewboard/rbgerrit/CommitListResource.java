@@ -1,5 +1,7 @@
 package org.reviewboard.rbgerrit;
 
+import com.google.common.io.BaseEncoding;
+import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.RestApiException;
@@ -8,16 +10,19 @@ import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.ProjectResource;
 import com.google.inject.Inject;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.revwalk.filter.AndRevFilter;
-import org.eclipse.jgit.revwalk.filter.MaxCountRevFilter;
-import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
@@ -29,19 +34,35 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 
 /**
  * A resource that returns a list of commits on a branch.
  */
 public class CommitListResource implements RestReadView<ProjectResource> {
-    private static final int MAX_RESULTS_PER_PAGE = 30;
+    private static final int DEFAULT_RESULTS_PER_PAGE = 30;
     private static final Logger log = LoggerFactory.getLogger(CommitListResource.class);
 
     private final GitRepositoryManager repoManager;
+    private final Configuration config;
+    private final CommitIndex commitIndex;
+    private final Metrics metrics;
     private String start = "master";
-    private int limit = MAX_RESULTS_PER_PAGE;
+    private String cursor = null;
+    private boolean firstParent = false;
+    private int skip = 0;
+    private int limit;
+    private boolean files = false;
+    private String fields = null;
+    private Set<Field> fieldSet = Field.DEFAULTS;
+    private ChangedFiles changedFiles = null;
+    private int walked = 0;
 
     /**
      * Set the starting revision.
@@ -53,112 +74,484 @@ public class CommitListResource implements RestReadView<ProjectResource> {
     @Option(name="--start", metaVar="REF", usage="Revision to start at.")
     public void setStart(final String start) { this.start = start; }
 
+    /**
+     * Set the cursor to continue from.
+     *
+     * The cursor is returned in the {@code _cursor} field of the last commit
+     * of the previous page when there are more commits. When given, it takes
+     * precedence over the starting revision.
+     *
+     * @param cursor The cursor returned with the previous page.
+     */
+    @Option(name="--cursor", metaVar="CURSOR", usage="Continue from the cursor returned with the previous page.")
+    public void setCursor(final String cursor) { this.cursor = cursor; }
+
+    /**
+     * Set whether or not to only follow the first parent of each commit.
+     *
+     * When set, only the non-merge commits on the first-parent chain of the
+     * starting revision are returned. Such pages are answered from an index
+     * of the branch history when possible.
+     *
+     * @param firstParent Whether or not to only follow first parents.
+     */
+    @Option(name="--first-parent", usage="Only list non-merge commits on the first-parent chain.")
+    public void setFirstParent(final boolean firstParent) { this.firstParent = firstParent; }
+
+    /**
+     * Set the number of commits to skip.
+     *
+     * This requires {@code --first-parent}.
+     *
+     * @param skip The number of non-merge commits to skip.
+     */
+    @Option(name="--skip", metaVar="COUNT", usage="Skip the first CNT commits (requires --first-parent).")
+    public void setSkip(final int skip) { this.skip = skip; }
+
     /**
      * Set the limit of commmits to return.
      *
      * This defaults to 30.
      *
-     * @param limit The new limit. If this is larger than 30, it will be set to
-     *              30.
+     * @param limit The new limit. If this is larger than the configured
+     *              maximum page size, it will be set to the maximum.
      */
     @Option(name="--limit", metaVar="COUNT", usage="Limit results to CNT commits.")
     public void setLimit(final int limit) {
-        this.limit = Math.min(MAX_RESULTS_PER_PAGE, limit);
+        this.limit = Math.min(config.getMaxCommitsPerPage(), limit);
     }
 
+    /**
+     * Set whether or not to include the files changed by each commit.
+     *
+     * When set, each commit includes the paths of its changed files, the
+     * type of each change, and the old and new blob IDs. These are computed
+     * by comparing trees, so no patch text is produced.
+     *
+     * @param files Whether or not to include the changed files.
+     */
+    @Option(name="--files", usage="Include the files changed by each commit.")
+    public void setFiles(final boolean files) { this.files = files; }
+
+    /**
+     * Set the fields to include for each commit.
+     *
+     * By default, every field except {@code subject} is included. Leaving
+     * out {@code author}, {@code time}, {@code message} and {@code subject}
+     * means commit messages never need to be kept in memory or decoded.
+     *
+     * @param fields A comma-separated list of field names.
+     */
+    @Option(name="--fields", metaVar="FIELDS",
+            usage="Comma-separated fields to include (revision, parents, author, time, message, subject).")
+    public void setFields(final String fields) { this.fields = fields; }
+
     /**
      * Construct the CommitListResource.
      * @param manager The git repository manager.
+     * @param config The plugin configuration.
+     * @param commitIndex The index of first-parent branch history.
+     * @param metrics The plugin metrics.
      */
     @Inject
-    public CommitListResource(final GitRepositoryManager manager) {
+    public CommitListResource(final GitRepositoryManager manager, final Configuration config,
+                              final CommitIndex commitIndex, final Metrics metrics) {
         repoManager = manager;
+        this.config = config;
+        this.commitIndex = commitIndex;
+        this.metrics = metrics;
+        this.limit = Math.min(config.getMaxCommitsPerPage(), DEFAULT_RESULTS_PER_PAGE);
     }
 
     /**
      * Return a list of commits from the given starting point.
      *
      * If no starting point is specified, it will start from the branch HEAD.
+     * If there are more commits, the last commit in the list will contain a
+     * cursor that can be used to fetch the next page.
      * @param parentResource The parent resource.
      * @return The list of commits.
-     * @throws RestApiException If an error occurs reading the Git repository.
+     * @throws RestApiException If an error occurs reading the Git repository,
+     *                          or if the options are invalid.
      */
     @Override
     public Response<Collection<CommitInfo>> apply(final ProjectResource parentResource) throws RestApiException {
+        final long startNanos = System.nanoTime();
         final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
 
-        try (final Repository repository = repoManager.openRepository(projectName)) {
-            final ObjectId startId = repository.resolve(String.format("%s^{commit}", start));
-            final RevWalk walk = new RevWalk(repository);
-            final List<CommitInfo> commits = new ArrayList<>(this.limit);
+        if (skip != 0 && !firstParent) {
+            throw new BadRequestException("--skip requires --first-parent.");
+        } else if (skip < 0) {
+            throw new BadRequestException("--skip must not be negative.");
+        } else if (limit < 1) {
+            throw new BadRequestException("--limit must be at least 1.");
+        }
+
+        if (fields != null) {
+            fieldSet = Field.parse(fields);
+        }
+
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final RevWalk walk = new RevWalk(repository)) {
+            walk.setRetainBody(Field.needBody(fieldSet));
+
+            if (files) {
+                changedFiles = new ChangedFiles(repository, walk.getObjectReader());
+            }
 
-            walk.setRevFilter(AndRevFilter.create(new NoMergeRevFilter(), MaxCountRevFilter.create(this.limit)));
-            walk.markStart(walk.parseCommit(startId));
-            walk.forEach(c -> commits.add(new CommitInfo(c)));
+            final List<CommitInfo> commits = firstParent
+                ? listFirstParent(projectName, repository, walk)
+                : listAll(repository, walk);
+
+            metrics.recordCommitsWalked(projectName, walked);
 
             return Response.ok(commits);
-        } catch (final AmbiguousObjectException | IncorrectObjectTypeException e) {
+        } catch (final ResourceNotFoundException | AmbiguousObjectException | IncorrectObjectTypeException
+                       | MissingObjectException e) {
+            metrics.recordNotFound(Metrics.ALL_COMMITS, projectName);
+
             throw new ResourceNotFoundException();
         } catch (final IOException e) {
             log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
 
             throw new RestApiException("Error reading repository: " + e.toString());
+        } finally {
+            metrics.recordLatency(Metrics.ALL_COMMITS, projectName, startNanos);
+        }
+    }
+
+    /**
+     * Return a page of all non-merge commits reachable from the start.
+     * @param repository The repository.
+     * @param walk The walk to use.
+     * @return The page of commits.
+     * @throws RestApiException If the start or cursor is invalid.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private List<CommitInfo> listAll(final Repository repository, final RevWalk walk)
+        throws RestApiException, IOException {
+        final List<CommitInfo> commits = new ArrayList<>(this.limit);
+        final Set<RevCommit> frontier = new LinkedHashSet<>();
+        final RevFlag popped = walk.newFlag("POPPED");
+
+        if (cursor != null) {
+            for (final ObjectId id : decodeCursor(cursor)) {
+                frontier.add(walk.parseCommit(id));
+            }
+        } else {
+            frontier.add(walk.parseCommit(resolveStart(repository)));
+        }
+
+        walk.markStart(frontier);
+
+        /*
+         * Merge commits are filtered out here instead of with a RevFilter,
+         * so that we see every commit the walk visits. That lets us track
+         * the walk's frontier (the commits it has queued but not yet
+         * visited), which is what the cursor for the next page captures.
+         */
+        RevCommit c;
+
+        while (commits.size() < this.limit && (c = walk.next()) != null) {
+            walked++;
+            c.add(popped);
+            frontier.remove(c);
+
+            for (final RevCommit parent : c.getParents()) {
+                if (!parent.has(popped)) {
+                    frontier.add(parent);
+                }
+            }
+
+            if (c.getParentCount() == 1) {
+                commits.add(newCommitInfo(walk, c, fieldSet, changedFiles));
+            }
+        }
+
+        if (!commits.isEmpty() && !frontier.isEmpty()) {
+            commits.get(commits.size() - 1)._cursor = encodeCursor(frontier);
+        }
+
+        return commits;
+    }
+
+    /**
+     * Return a page of the non-merge commits on the first-parent chain.
+     *
+     * Pages are served from the {@link CommitIndex} when possible, and from a
+     * live walk of the chain otherwise.
+     * @param projectName The name of the project.
+     * @param repository The repository.
+     * @param walk The walk to use.
+     * @return The page of commits.
+     * @throws RestApiException If the start or cursor is invalid.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private List<CommitInfo> listFirstParent(final Project.NameKey projectName, final Repository repository,
+                                             final RevWalk walk) throws RestApiException, IOException {
+        final List<CommitInfo> commits = new ArrayList<>(this.limit);
+        final ObjectId startId;
+        Ref branch = null;
+        ObjectId lastParent = null;
+
+        if (cursor != null) {
+            final List<ObjectId> ids = decodeCursor(cursor);
+
+            if (ids.size() != 1) {
+                throw new BadRequestException("Invalid cursor.");
+            }
+
+            startId = ids.get(0);
+        } else {
+            startId = resolveStart(repository);
+            branch = repository.exactRef(start);
+
+            if (branch == null && !start.startsWith(Constants.R_REFS)) {
+                branch = repository.exactRef(Constants.R_HEADS + start);
+            }
+        }
+
+        final List<ObjectId> ids = commitIndex.page(projectName, branch, startId, skip, this.limit);
+        metrics.recordCacheLookup(CommitIndex.NAME, ids != null);
+
+        if (ids != null) {
+            for (final ObjectId id : ids) {
+                final RevCommit c = walk.parseCommit(id);
+
+                walked++;
+                commits.add(newCommitInfo(walk, c, fieldSet, changedFiles));
+                lastParent = c.getParent(0);
+            }
+        } else {
+            RevCommit c = walk.parseCommit(startId);
+            int skipped = 0;
+
+            while (c != null && commits.size() < this.limit) {
+                walked++;
+
+                if (c.getParentCount() == 1) {
+                    if (skipped < skip) {
+                        skipped++;
+                    } else {
+                        commits.add(newCommitInfo(walk, c, fieldSet, changedFiles));
+                        lastParent = c.getParent(0);
+                    }
+                }
+
+                c = c.getParentCount() == 0 ? null : walk.parseCommit(c.getParent(0));
+            }
+        }
+
+        if (commits.size() == this.limit) {
+            commits.get(commits.size() - 1)._cursor = encodeCursor(Collections.singletonList(lastParent));
+        }
+
+        return commits;
+    }
+
+    /**
+     * Return the information about a commit.
+     * @param walk The walk that parsed the commit.
+     * @param commit The commit.
+     * @param fields The fields to include.
+     * @param changedFiles The lister of changed files, or {@code null} to
+     *                     leave them out.
+     * @return The information about the commit.
+     * @throws IOException If an error occurs reading the changed files.
+     */
+    static CommitInfo newCommitInfo(final RevWalk walk, final RevCommit commit, final Set<Field> fields,
+                                    final ChangedFiles changedFiles) throws IOException {
+        final CommitInfo info = new CommitInfo(commit, fields);
+
+        if (changedFiles != null) {
+            final List<DiffEntry> entries = changedFiles.list(walk, commit);
+            info.files = new ArrayList<>(entries.size());
+
+            for (final DiffEntry entry : entries) {
+                info.files.add(new FileInfo(entry));
+            }
+        }
+
+        return info;
+    }
+
+    /**
+     * Resolve the starting revision.
+     * @param repository The repository.
+     * @return The ID of the starting commit.
+     * @throws ResourceNotFoundException If the starting revision does not
+     *                                   exist.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private ObjectId resolveStart(final Repository repository) throws ResourceNotFoundException, IOException {
+        final ObjectId startId = repository.resolve(String.format("%s^{commit}", start));
+
+        if (startId == null) {
+            throw new ResourceNotFoundException();
+        }
+
+        return startId;
+    }
+
+    /**
+     * Encode the frontier of a walk as an opaque cursor.
+     * @param frontier The commits that have yet to be visited.
+     * @return The cursor.
+     */
+    private static String encodeCursor(final Collection<? extends AnyObjectId> frontier) {
+        final byte[] raw = new byte[frontier.size() * Constants.OBJECT_ID_LENGTH];
+        int i = 0;
+
+        for (final AnyObjectId id : frontier) {
+            id.copyRawTo(raw, i);
+            i += Constants.OBJECT_ID_LENGTH;
+        }
+
+        return BaseEncoding.base64Url().omitPadding().encode(raw);
+    }
+
+    /**
+     * Decode a cursor into the frontier of a walk.
+     * @param cursor The cursor.
+     * @return The commits that have yet to be visited.
+     * @throws BadRequestException If the cursor is invalid.
+     */
+    private static List<ObjectId> decodeCursor(final String cursor) throws BadRequestException {
+        final byte[] raw;
+
+        try {
+            raw = BaseEncoding.base64Url().omitPadding().decode(cursor);
+        } catch (final IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+
+        if (raw.length == 0 || raw.length % Constants.OBJECT_ID_LENGTH != 0) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+
+        final List<ObjectId> ids = new ArrayList<>(raw.length / Constants.OBJECT_ID_LENGTH);
+
+        for (int i = 0; i < raw.length; i += Constants.OBJECT_ID_LENGTH) {
+            ids.add(ObjectId.fromRaw(raw, i));
+        }
+
+        return ids;
+    }
+
+    /**
+     * A field of {@link CommitInfo} that can be selected with
+     * {@code --fields}.
+     */
+    enum Field {
+        REVISION, PARENTS, AUTHOR, TIME, MESSAGE, SUBJECT;
+
+        /**
+         * The fields included when none are selected.
+         */
+        static final Set<Field> DEFAULTS = Collections.unmodifiableSet(
+            EnumSet.of(REVISION, PARENTS, AUTHOR, TIME, MESSAGE));
+
+        /**
+         * Parse a comma-separated list of field names.
+         * @param fields The list of field names.
+         * @return The fields.
+         * @throws BadRequestException If a field name is not known.
+         */
+        static Set<Field> parse(final String fields) throws BadRequestException {
+            final Set<Field> result = EnumSet.noneOf(Field.class);
+
+            for (final String name : fields.split(",")) {
+                try {
+                    result.add(valueOf(name.trim().toUpperCase(Locale.US)));
+                } catch (final IllegalArgumentException e) {
+                    throw new BadRequestException(String.format("Unknown field '%s'.", name.trim()));
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Return whether any of the fields are read from the commit body.
+         *
+         * Commits only need to keep their bodies after being parsed if this
+         * is true.
+         * @param fields The fields.
+         * @return Whether or not the commit body is needed.
+         */
+        static boolean needBody(final Set<Field> fields) {
+            return fields.contains(AUTHOR) || fields.contains(TIME) || fields.contains(MESSAGE)
+                || fields.contains(SUBJECT);
         }
     }
 
     /**
      * Information about a single commit.
+     *
+     * Fields that were not selected are left {@code null}, and so are left
+     * out of the response.
      */
     public static class CommitInfo {
         private static final DateTimeFormatter formatter = ISODateTimeFormat.dateTimeNoMillis();
         public final String message;
+        public final String subject;
         public final String revision;
         public final String author;
         public final String[] parents;
         public final String time;
+        public List<FileInfo> files;
+        public String _cursor;
 
         /**
          * Construct the CommitInfo object.
          * @param commit The commit to retrieve information from.
+         * @param fields The fields to include.
          */
-        CommitInfo(final RevCommit commit) {
+        CommitInfo(final RevCommit commit, final Set<Field> fields) {
             assert commit.getParentCount() == 1;
 
-            final PersonIdent ident = commit.getAuthorIdent();
-            time = new DateTime(ident.getWhen(), DateTimeZone.forTimeZone(ident.getTimeZone())).toString(formatter);
-            message = commit.getFullMessage();
-            revision = commit.getId().getName();
-            author = ident.getName();
-            parents = new String[]{ commit.getParent(0).getId().getName() };
+            final PersonIdent ident = fields.contains(Field.AUTHOR) || fields.contains(Field.TIME)
+                ? commit.getAuthorIdent()
+                : null;
+
+            time = fields.contains(Field.TIME)
+                ? new DateTime(ident.getWhen(), DateTimeZone.forTimeZone(ident.getTimeZone())).toString(formatter)
+                : null;
+            message = fields.contains(Field.MESSAGE) ? commit.getFullMessage() : null;
+            subject = fields.contains(Field.SUBJECT) ? commit.getShortMessage() : null;
+            revision = fields.contains(Field.REVISION) ? commit.getId().getName() : null;
+            author = fields.contains(Field.AUTHOR) ? ident.getName() : null;
+            parents = fields.contains(Field.PARENTS) ? new String[]{ commit.getParent(0).getId().getName() } : null;
         }
     }
 
     /**
-     * A RevWalk filter that excludes merge commits.
+     * Information about a file changed by a commit.
      */
-    private static class NoMergeRevFilter extends RevFilter {
+    public static class FileInfo {
+        public final String changeType;
+        public final String path;
+        public final String oldPath;
+        public final String oldBlobId;
+        public final String newBlobId;
+
         /**
-         * Return whether or not to include a commit in the walk.
+         * Construct the FileInfo object.
          *
-         * The commit will only be included if it is not a merge commit (i.e.,
-         * it has only a single parent).
-         *
-         * @param walk The current walk.
-         * @param commit The commit to include or exclude.
-         * @return Whether or not to include the given commit.
+         * The old path is only included for renames and copies, and blob IDs
+         * are omitted for the side of the change where the file is absent.
+         * @param entry The changed file.
          */
-        @Override
-        public boolean include(final RevWalk walk, final RevCommit commit) {
-            return commit.getParentCount() == 1;
-        }
+        FileInfo(final DiffEntry entry) {
+            final DiffEntry.ChangeType type = entry.getChangeType();
 
-        /**
-         * Return a copy of this filter.
-         * @return A copy of this filter.
-         */
-        @Override
-        public RevFilter clone() {
-            return this;
+            changeType = type.name().toLowerCase(Locale.US);
+            path = type == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath();
+            oldPath = type == DiffEntry.ChangeType.RENAME || type == DiffEntry.ChangeType.COPY
+                ? entry.getOldPath()
+                : null;
+            oldBlobId = type == DiffEntry.ChangeType.ADD ? null : entry.getOldId().name();
+            newBlobId = type == DiffEntry.ChangeType.DELETE ? null : entry.getNewId().name();
         }
     }
 }
@@ -0,0 +1,143 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Helpers for gzip-compressed responses and cache entries.
+ *
+ * Gerrit only compresses binary responses whose length is known up front,
+ * and compresses cached responses again on every request. Views that accept
+ * {@code --compressed}, or whose encoding is negotiated by the
+ * {@link DiffEncodingFilter}, instead compress their responses themselves,
+ * or serve compressed cache entries as they are.
+ */
+final class Compression {
+    static final String GZIP_MIMETYPE = "application/gzip";
+
+    private Compression() {
+    }
+
+    /**
+     * Compress bytes.
+     * @param data The bytes to compress.
+     * @return The gzip-compressed bytes.
+     */
+    static byte[] compress(final byte[] data) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (final IOException e) {
+            // Writing to memory cannot fail.
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the uncompressed size of gzip-compressed bytes.
+     *
+     * This is read from the gzip trailer, and so is only exact for data
+     * smaller than 4 GiB.
+     * @param compressed The gzip-compressed bytes.
+     * @return The uncompressed size in bytes.
+     */
+    static long uncompressedSize(final byte[] compressed) {
+        final int n = compressed.length;
+
+        return (compressed[n - 4] & 0xffL)
+            | (compressed[n - 3] & 0xffL) << 8
+            | (compressed[n - 2] & 0xffL) << 16
+            | (compressed[n - 1] & 0xffL) << 24;
+    }
+
+    /**
+     * Return a response containing gzip-compressed bytes.
+     * @param compressed The gzip-compressed bytes.
+     * @param decompress Whether to decompress the bytes for the client.
+     * @return The response.
+     */
+    static BinaryResult fromCompressed(final byte[] compressed, final boolean decompress) {
+        if (!decompress) {
+            return BinaryResult.create(compressed);
+        }
+
+        // The length is known, so Gerrit can still compress the response if
+        // the client accepts it.
+        return new BinaryResult() {
+            @Override
+            public void writeTo(final OutputStream stream) throws IOException {
+                try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                    ByteStreams.copy(in, stream);
+                }
+            }
+        }.setContentLength(uncompressedSize(compressed));
+    }
+
+    /**
+     * Return a response that compresses another as it is written.
+     * @param result The response to compress.
+     * @return The compressed response.
+     */
+    static BinaryResult compressed(final BinaryResult result) {
+        return new BinaryResult() {
+            @Override
+            public void writeTo(final OutputStream stream) throws IOException {
+                final GZIPOutputStream gzip = new GZIPOutputStream(new UnclosableOutputStream(stream), 8192);
+
+                result.writeTo(gzip);
+                gzip.close();
+            }
+
+            @Override
+            public void close() throws IOException {
+                result.close();
+            }
+        }.disableGzip();
+    }
+
+    /**
+     * Wrap a stream so that the output stream of the response is left open
+     * when a wrapping stream is closed.
+     * @param stream The stream.
+     * @return The wrapped stream.
+     */
+    static OutputStream unclosable(final OutputStream stream) {
+        return new UnclosableOutputStream(stream);
+    }
+
+    /**
+     * An output stream that flushes instead of closing the underlying stream.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+        /**
+         * Construct a new UnclosableOutputStream.
+         * @param out The underlying stream.
+         */
+        UnclosableOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
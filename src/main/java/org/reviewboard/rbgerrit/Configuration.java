@@ -0,0 +1,251 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.restapi.CacheControl;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The plugin configuration.
+ *
+ * Settings are read from the {@code [plugin "gerrit-reviewboard"]} section of
+ * {@code gerrit.config} when the plugin is loaded.
+ */
+@Singleton
+public class Configuration {
+    /**
+     * How long clients and proxies may cache responses for immutable objects.
+     */
+    private static final long IMMUTABLE_MAX_AGE_DAYS = 365;
+
+    /**
+     * The default maximum size of a patch, in bytes.
+     */
+    private static final long DEFAULT_MAX_PATCH_SIZE = 50 << 20;
+
+    /**
+     * The default maximum size of a patch that will be cached, in bytes.
+     */
+    private static final long DEFAULT_MAX_CACHED_PATCH_SIZE = 4 << 20;
+
+    /**
+     * The default maximum size of a file whose changes are diffed, in bytes.
+     */
+    private static final long DEFAULT_MAX_DIFF_FILE_SIZE = 10 << 20;
+
+    /**
+     * The default maximum number of commits returned per page.
+     */
+    private static final int DEFAULT_MAX_COMMITS_PER_PAGE = 30;
+
+    /**
+     * The default maximum number of diffs computed at once.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_DIFFS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default maximum number of diff requests waiting to be computed.
+     */
+    private static final int DEFAULT_MAX_QUEUED_DIFFS = 32;
+
+    /**
+     * The default time a diff request may wait to be computed, in seconds.
+     */
+    private static final long DEFAULT_DIFF_QUEUE_TIMEOUT = 30;
+
+    /**
+     * The default maximum number of diffs precomputed for a single ref
+     * update.
+     */
+    private static final int DEFAULT_MAX_PRECOMPUTED_COMMITS = 50;
+
+    /**
+     * The default branches whose new commits have their diffs precomputed.
+     */
+    private static final String DEFAULT_PRECOMPUTE_BRANCH = "refs/heads/*";
+
+    private final boolean publicCaching;
+    private final long maxPatchSize;
+    private final long maxCachedPatchSize;
+    private final long maxDiffFileSize;
+    private final int maxCommitsPerPage;
+    private final int maxConcurrentDiffs;
+    private final int maxConcurrentDiffsPerProject;
+    private final int maxQueuedDiffs;
+    private final long diffQueueTimeout;
+    private final List<String> precomputeProjects;
+    private final List<String> precomputeBranches;
+    private final int maxPrecomputedCommits;
+    private final int precomputeThreads;
+
+    /**
+     * Construct the Configuration.
+     * @param cfgFactory The plugin configuration factory.
+     * @param pluginName The name of this plugin.
+     */
+    @Inject
+    public Configuration(final PluginConfigFactory cfgFactory, @PluginName final String pluginName) {
+        final PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
+
+        publicCaching = cfg.getBoolean("publicCaching", false);
+        maxPatchSize = cfg.getLong("maxPatchSize", DEFAULT_MAX_PATCH_SIZE);
+        maxCachedPatchSize = cfg.getLong("maxCachedPatchSize", DEFAULT_MAX_CACHED_PATCH_SIZE);
+        maxDiffFileSize = cfg.getLong("maxDiffFileSize", DEFAULT_MAX_DIFF_FILE_SIZE);
+        maxCommitsPerPage = cfg.getInt("maxCommitsPerPage", DEFAULT_MAX_COMMITS_PER_PAGE);
+        maxConcurrentDiffs = cfg.getInt("maxConcurrentDiffs", DEFAULT_MAX_CONCURRENT_DIFFS);
+        maxConcurrentDiffsPerProject = cfg.getInt("maxConcurrentDiffsPerProject", 0);
+        maxQueuedDiffs = cfg.getInt("maxQueuedDiffs", DEFAULT_MAX_QUEUED_DIFFS);
+        diffQueueTimeout = cfg.getLong("diffQueueTimeout", DEFAULT_DIFF_QUEUE_TIMEOUT);
+        precomputeProjects = Arrays.asList(cfg.getStringList("precomputeProject"));
+        maxPrecomputedCommits = cfg.getInt("maxPrecomputedCommits", DEFAULT_MAX_PRECOMPUTED_COMMITS);
+        precomputeThreads = cfg.getInt("precomputeThreads", 1);
+
+        final String[] branches = cfg.getStringList("precomputeBranch");
+        precomputeBranches = branches.length == 0
+            ? Collections.singletonList(DEFAULT_PRECOMPUTE_BRANCH)
+            : Arrays.asList(branches);
+    }
+
+    /**
+     * Return the cache policy for responses about immutable objects.
+     *
+     * Responses are only cacheable by shared caches (such as a reverse proxy)
+     * if {@code publicCaching} is enabled, as they may otherwise leak content
+     * from projects that are not publicly readable.
+     *
+     * @return The cache policy.
+     */
+    public CacheControl getImmutableCacheControl() {
+        return publicCaching
+            ? CacheControl.PUBLIC(IMMUTABLE_MAX_AGE_DAYS, TimeUnit.DAYS)
+            : CacheControl.PRIVATE(IMMUTABLE_MAX_AGE_DAYS, TimeUnit.DAYS);
+    }
+
+    /**
+     * Return the maximum size of a patch.
+     *
+     * Diffs that grow past this size are truncated.
+     *
+     * @return The maximum size of a patch in bytes, or 0 for no limit.
+     */
+    public long getMaxPatchSize() {
+        return maxPatchSize;
+    }
+
+    /**
+     * Return the maximum size of a patch that will be stored in the diff
+     * cache.
+     * @return The maximum size of a cached patch in bytes.
+     */
+    public long getMaxCachedPatchSize() {
+        return maxCachedPatchSize;
+    }
+
+    /**
+     * Return the maximum size of a file whose changes are diffed.
+     *
+     * Changes to larger files are listed in diffs without their content.
+     *
+     * @return The maximum size of a file in bytes, or 0 for no limit.
+     */
+    public long getMaxDiffFileSize() {
+        return maxDiffFileSize;
+    }
+
+    /**
+     * Return the maximum number of commits returned per page.
+     * @return The maximum number of commits per page.
+     */
+    public int getMaxCommitsPerPage() {
+        return maxCommitsPerPage;
+    }
+
+    /**
+     * Return the maximum number of diffs computed at once across all
+     * projects.
+     * @return The maximum number of concurrent diffs, or 0 for no limit.
+     */
+    public int getMaxConcurrentDiffs() {
+        return maxConcurrentDiffs;
+    }
+
+    /**
+     * Return the maximum number of diffs computed at once for a single
+     * project.
+     * @return The maximum number of concurrent diffs per project, or 0 for no
+     *         limit.
+     */
+    public int getMaxConcurrentDiffsPerProject() {
+        return maxConcurrentDiffsPerProject;
+    }
+
+    /**
+     * Return the maximum number of diff requests that may wait to be
+     * computed.
+     *
+     * Requests beyond this are rejected immediately.
+     *
+     * @return The maximum number of waiting diff requests.
+     */
+    public int getMaxQueuedDiffs() {
+        return maxQueuedDiffs;
+    }
+
+    /**
+     * Return how long a diff request may wait to be computed before it is
+     * rejected.
+     * @return The timeout in seconds.
+     */
+    public long getDiffQueueTimeout() {
+        return diffQueueTimeout;
+    }
+
+    /**
+     * Return the projects whose new commits have their diffs precomputed.
+     *
+     * Each entry is a project name, a prefix ending in {@code *}, or a
+     * regular expression starting with {@code ^}. Diffs are not precomputed
+     * unless at least one project is configured.
+     *
+     * @return The project patterns.
+     */
+    public List<String> getPrecomputeProjects() {
+        return precomputeProjects;
+    }
+
+    /**
+     * Return the branches whose new commits have their diffs precomputed.
+     *
+     * Each entry is a full ref name, a prefix ending in {@code *}, or a
+     * regular expression starting with {@code ^}.
+     *
+     * @return The branch patterns.
+     */
+    public List<String> getPrecomputeBranches() {
+        return precomputeBranches;
+    }
+
+    /**
+     * Return the maximum number of diffs precomputed for a single ref update.
+     * @return The maximum number of commits.
+     */
+    public int getMaxPrecomputedCommits() {
+        return maxPrecomputedCommits;
+    }
+
+    /**
+     * Return the number of threads used to precompute diffs.
+     * @return The number of threads.
+     */
+    public int getPrecomputeThreads() {
+        return precomputeThreads;
+    }
+}
@@ -0,0 +1,186 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A cache of formatted commit diffs.
+ *
+ * Diffs are keyed by the project, the commit ID and the options used to
+ * format them. The project is included because the same commit may be
+ * formatted differently in another repository, such as with a different
+ * {@code diff.renames} setting. Commits are immutable, so entries never need
+ * to be invalidated. Diffs are
+ * stored gzip-compressed, so that they take less space and can be sent to
+ * clients that accept compressed diffs without compressing them again.
+ *
+ * The cache is persistent, so its memory limit and on-disk size are
+ * configured in the {@code [cache "gerrit-reviewboard.diffs"]} section of
+ * {@code gerrit.config}.
+ *
+ * Diffs that are being computed are tracked as well, so that concurrent
+ * requests for the same diff can wait for a single computation instead of
+ * each formatting it themselves.
+ */
+@Singleton
+public class DiffCache {
+    static final String NAME = "diffs";
+
+    /**
+     * The default memory limit of the cache, in bytes.
+     */
+    private static final long DEFAULT_MEMORY_LIMIT = 32 << 20;
+
+    private final Cache<Key, byte[]> cache;
+    private final ConcurrentMap<Key, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Return the module that registers the cache.
+     * @return The module.
+     */
+    static CacheModule module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+                persist(NAME, Key.class, byte[].class)
+                    .maximumWeight(DEFAULT_MEMORY_LIMIT)
+                    .weigher(DiffWeigher.class);
+            }
+        };
+    }
+
+    /**
+     * Construct the DiffCache.
+     * @param cache The underlying cache.
+     */
+    @Inject
+    DiffCache(@Named(NAME) final Cache<Key, byte[]> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Return a cached diff.
+     * @param key The cache key.
+     * @return The gzip-compressed diff, or {@code null} if it is not cached.
+     */
+    byte[] getIfPresent(final Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Store a diff in the cache.
+     * @param key The cache key.
+     * @param diff The gzip-compressed diff.
+     */
+    void put(final Key key, final byte[] diff) {
+        cache.put(key, diff);
+    }
+
+    /**
+     * Claim the computation of a diff.
+     *
+     * If no other request is computing the diff, the caller becomes
+     * responsible for computing it, and must call
+     * {@link #complete(Key, byte[])} once it is done, whether or not it
+     * succeeds.
+     * @param key The cache key.
+     * @return {@code null} if the caller must compute the diff, or the result
+     *         of the computation that is already in progress. The result is
+     *         {@code null} if the diff could not be shared.
+     */
+    CompletableFuture<byte[]> claim(final Key key) {
+        return pending.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    /**
+     * Return whether a diff is being computed.
+     * @param key The cache key.
+     * @return Whether or not a request has claimed the computation of the
+     *         diff and not yet finished it.
+     */
+    boolean isPending(final Key key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * Finish a computation claimed with {@link #claim(Key)}.
+     *
+     * The diff is handed to any requests waiting for it, but is not added to
+     * the cache.
+     * @param key The cache key.
+     * @param diff The gzip-compressed diff, or {@code null} if it could not
+     *               be computed or was too large to keep in memory.
+     */
+    void complete(final Key key, final byte[] diff) {
+        final CompletableFuture<byte[]> future = pending.remove(key);
+
+        if (future != null) {
+            future.complete(diff);
+        }
+    }
+
+    /**
+     * The key for a cached diff.
+     */
+    static class Key implements Serializable {
+        // Bumped whenever the stored diffs change format, so that older
+        // persisted entries are never read.
+        private static final long serialVersionUID = 4L;
+
+        private final String projectName;
+        private final ObjectId commitId;
+        private final String options;
+
+        /**
+         * Construct a new Key.
+         * @param projectName The name of the project.
+         * @param commitId The ID of the commit.
+         * @param options A canonical representation of the options used to
+         *                format the diff.
+         */
+        Key(final String projectName, final AnyObjectId commitId, final String options) {
+            this.projectName = projectName;
+            this.commitId = commitId.copy();
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return projectName.equals(other.projectName) && commitId.equals(other.commitId)
+                && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectName, commitId, options);
+        }
+    }
+
+    /**
+     * Weighs cache entries by the size of the formatted diff.
+     */
+    static class DiffWeigher implements Weigher<Key, byte[]> {
+        @Override
+        public int weigh(final Key key, final byte[] value) {
+            return 64 + key.projectName.length() + key.options.length() + value.length;
+        }
+    }
+}
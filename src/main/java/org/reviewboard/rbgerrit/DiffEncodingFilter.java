@@ -0,0 +1,120 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.httpd.AllRequestFilter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+
+/**
+ * A filter that negotiates the content encoding of diff requests.
+ *
+ * REST views cannot read request headers or set response headers, so the
+ * response of a diff request from a client that accepts gzip is made
+ * available to the {@link DiffResource} through
+ * {@link #negotiateGzip()}. The view can then send gzip-compressed diffs,
+ * including those stored compressed in the {@link DiffCache}, with a
+ * {@code Content-Encoding: gzip} header instead of leaving Gerrit to
+ * compress them again.
+ *
+ * Diff requests are recognized in the same way as by the
+ * {@link DiffThrottleFilter}, including the unprefixed
+ * {@code .../commits/<id>/diff/} form that Review Board requests. Only the
+ * path is needed here, so the diff options are not parsed.
+ */
+@Singleton
+public class DiffEncodingFilter extends AllRequestFilter {
+    /**
+     * The response of the diff request being handled by the current thread,
+     * if its client accepts gzip.
+     */
+    private static final ThreadLocal<HttpServletResponse> gzipResponse = new ThreadLocal<>();
+
+    private final Pattern diffPath;
+
+    /**
+     * Construct the DiffEncodingFilter.
+     * @param pluginName The name of this plugin.
+     */
+    @Inject
+    public DiffEncodingFilter(@PluginName final String pluginName) {
+        this.diffPath = DiffRequest.pathPattern(pluginName);
+    }
+
+    /**
+     * Make the response of a diff request available for negotiation.
+     * @param request The request.
+     * @param response The response.
+     * @param chain The rest of the filter chain.
+     * @throws IOException If an error occurs handling the request.
+     * @throws ServletException If an error occurs handling the request.
+     */
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException {
+        if (!DiffRequest.isDiffRequest(diffPath, request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletResponse res = (HttpServletResponse) response;
+
+        res.addHeader("Vary", "Accept-Encoding");
+
+        if (!acceptsGzip((HttpServletRequest) request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        gzipResponse.set(res);
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            gzipResponse.remove();
+        }
+    }
+
+    /**
+     * Mark the current diff response as gzip-encoded, if its client accepts
+     * gzip.
+     *
+     * This must only be called once the view is certain to return a diff,
+     * and the caller must then write the diff gzip-compressed and disable
+     * Gerrit's own compression.
+     * @return Whether or not the diff must be written gzip-compressed.
+     */
+    static boolean negotiateGzip() {
+        final HttpServletResponse res = gzipResponse.get();
+
+        if (res == null) {
+            return false;
+        }
+
+        res.setHeader("Content-Encoding", "gzip");
+
+        return true;
+    }
+
+    /**
+     * Return whether a client accepts gzip-encoded responses.
+     *
+     * This matches the check Gerrit uses for its own compression.
+     * @param req The request.
+     * @return Whether or not the client accepts gzip.
+     */
+    private static boolean acceptsGzip(final HttpServletRequest req) {
+        final String accepts = req.getHeader("Accept-Encoding");
+
+        return accepts != null && accepts.contains("gzip");
+    }
+}
@@ -0,0 +1,279 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Precomputes the diffs of newly pushed commits.
+ *
+ * Review Board requests the diff of each new commit right after a push, when
+ * none of them are cached yet. When enabled for a project and branch, the
+ * non-merge commits that a ref update makes reachable are diffed on a small
+ * pool of low-priority background threads, and stored in the
+ * {@link DiffCache} so that those requests are cache hits.
+ *
+ * The number of commits per update is limited, and diffs that are too large
+ * to be cached are abandoned, so that a force-push of a large history cannot
+ * flood the server. Updates that arrive while the queue is full are dropped.
+ */
+@Singleton
+public class DiffPrecomputer implements GitReferenceUpdatedListener, LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(DiffPrecomputer.class);
+
+    /**
+     * The maximum number of ref updates waiting to be processed.
+     */
+    private static final int MAX_QUEUED_UPDATES = 100;
+
+    /**
+     * The maximum number of commits walked for each precomputed commit.
+     *
+     * This bounds the walk when most new commits are merges.
+     */
+    private static final int MAX_WALKED_PER_COMMIT = 10;
+
+    private final GitRepositoryManager repoManager;
+    private final Configuration config;
+    private final DiffCache diffCache;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Construct the DiffPrecomputer.
+     * @param repoManager The repository manager.
+     * @param config The plugin configuration.
+     * @param diffCache The cache of formatted diffs.
+     */
+    @Inject
+    DiffPrecomputer(final GitRepositoryManager repoManager, final Configuration config, final DiffCache diffCache) {
+        this.repoManager = repoManager;
+        this.config = config;
+        this.diffCache = diffCache;
+    }
+
+    /**
+     * Start the background threads, if precomputing is enabled.
+     *
+     * Nothing is precomputed when {@code maxCachedPatchSize} is 0, since no
+     * diff could be cached, and the limit of 0 would otherwise let diffs of
+     * any size be formatted.
+     */
+    @Override
+    public synchronized void start() {
+        if (config.getPrecomputeProjects().isEmpty() || config.getMaxPrecomputedCommits() <= 0
+            || config.getMaxCachedPatchSize() <= 0) {
+            return;
+        }
+
+        final int threads = Math.max(config.getPrecomputeThreads(), 1);
+
+        executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_UPDATES),
+            new ThreadFactoryBuilder()
+                .setNameFormat("gerrit-reviewboard-diff-precompute-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build(),
+            (task, e) -> log.warn("Too many ref updates are queued; not precomputing their diffs"));
+    }
+
+    /**
+     * Stop the background threads.
+     */
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Queue the new commits of an updated branch to have their diffs
+     * precomputed.
+     * @param event The ref update event.
+     */
+    @Override
+    public void onGitReferenceUpdated(final Event event) {
+        final ThreadPoolExecutor executor;
+
+        synchronized (this) {
+            executor = this.executor;
+        }
+
+        if (executor == null || event.isDelete()
+            || !matchesAny(config.getPrecomputeProjects(), event.getProjectName())
+            || !matchesAny(config.getPrecomputeBranches(), event.getRefName())) {
+            return;
+        }
+
+        final Project.NameKey projectName = new Project.NameKey(event.getProjectName());
+        final String refName = event.getRefName();
+        final ObjectId newId = ObjectId.fromString(event.getNewObjectId());
+        final ObjectId oldId = event.isCreate() ? null : ObjectId.fromString(event.getOldObjectId());
+
+        executor.execute(() -> precompute(projectName, refName, oldId, newId));
+    }
+
+    /**
+     * Precompute the diffs of the commits that became reachable from a
+     * branch.
+     * @param projectName The name of the project.
+     * @param refName The name of the branch.
+     * @param oldId The old commit of the branch, or {@code null} if it was
+     *              created.
+     * @param newId The new commit of the branch.
+     */
+    private void precompute(final Project.NameKey projectName, final String refName, final ObjectId oldId,
+                            final ObjectId newId) {
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final RevWalk walk = new RevWalk(repository)) {
+            for (final RevCommit commit : findNewCommits(repository, walk, refName, oldId, newId)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+
+                precompute(projectName, repository, commit);
+            }
+        } catch (final IOException e) {
+            log.warn(String.format("Could not precompute diffs for '%s' in project '%s': %s",
+                                   refName, projectName.get(), e), e);
+        }
+    }
+
+    /**
+     * Find the non-merge commits that became reachable from a branch.
+     *
+     * For a new branch, these are the commits not reachable from any other
+     * branch.
+     * @param repository The repository.
+     * @param walk The walk to use.
+     * @param refName The name of the branch.
+     * @param oldId The old commit of the branch, or {@code null} if it was
+     *              created.
+     * @param newId The new commit of the branch.
+     * @return The newest of the new commits, up to the configured limit.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private List<RevCommit> findNewCommits(final Repository repository, final RevWalk walk, final String refName,
+                                           final ObjectId oldId, final ObjectId newId) throws IOException {
+        final int limit = config.getMaxPrecomputedCommits();
+        final List<RevCommit> commits = new ArrayList<>(limit);
+
+        walk.markStart(walk.parseCommit(newId));
+
+        if (oldId != null) {
+            walk.markUninteresting(walk.parseCommit(oldId));
+        } else {
+            for (final Ref ref : repository.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+                if (!ref.getName().equals(refName) && ref.getObjectId() != null) {
+                    walk.markUninteresting(walk.parseCommit(ref.getObjectId()));
+                }
+            }
+        }
+
+        RevCommit c;
+        int walked = 0;
+
+        while (commits.size() < limit && walked < limit * MAX_WALKED_PER_COMMIT && (c = walk.next()) != null) {
+            walked++;
+
+            if (c.getParentCount() == 1) {
+                commits.add(c);
+            }
+        }
+
+        return commits;
+    }
+
+    /**
+     * Precompute the diff of a commit, unless it is already cached or being
+     * computed.
+     * @param projectName The name of the project.
+     * @param repository The repository.
+     * @param commit The commit.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private void precompute(final Project.NameKey projectName, final Repository repository,
+                            final RevCommit commit) throws IOException {
+        // Requests with the default options are the ones made right after a
+        // push.
+        final DiffCache.Key key = new DiffCache.Key(projectName.get(), commit, "");
+
+        if (diffCache.getIfPresent(key) != null) {
+            return;
+        }
+
+        final CompletableFuture<byte[]> inProgress = diffCache.claim(key);
+
+        if (inProgress != null) {
+            return;
+        }
+
+        byte[] diff = null;
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final boolean truncated = new DiffWriter(repository)
+                .setMaxPatchSize(config.getMaxCachedPatchSize())
+                .setMaxFileSize(config.getMaxDiffFileSize())
+                .write(commit, out);
+
+            if (!truncated) {
+                diff = Compression.compress(out.toByteArray());
+                diffCache.put(key, diff);
+            }
+        } finally {
+            diffCache.complete(key, diff);
+        }
+    }
+
+    /**
+     * Return whether a name matches any of a list of patterns.
+     * @param patterns The patterns. Each is an exact name, a prefix ending in
+     *                 {@code *}, or a regular expression starting with
+     *                 {@code ^}.
+     * @param name The name.
+     * @return Whether or not the name matches.
+     */
+    private static boolean matchesAny(final List<String> patterns, final String name) {
+        for (final String pattern : patterns) {
+            if (pattern.startsWith("^")) {
+                if (name.matches(pattern)) {
+                    return true;
+                }
+            } else if (pattern.endsWith("*")) {
+                if (name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                    return true;
+                }
+            } else if (name.equals(pattern)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.restapi.Url;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A request for a commit diff, as seen by a servlet filter.
+ *
+ * Filters run before Gerrit has resolved the project or parsed the view's
+ * options, so the project, commit and options are read from the URL here in
+ * the same way that Gerrit will read them.
+ */
+final class DiffRequest {
+    /**
+     * The values that turn on a boolean option.
+     */
+    private static final List<String> TRUE_VALUES = Arrays.asList("", "true", "on", "yes", "1");
+
+    private final String projectName;
+    private final ObjectId commitId;
+    private final String options;
+
+    /**
+     * Construct a new DiffRequest.
+     * @param projectName The name of the project.
+     * @param commitId The ID of the commit, or {@code null} if it is not a
+     *                 full commit ID.
+     * @param options A canonical representation of the diff options.
+     */
+    private DiffRequest(final String projectName, final ObjectId commitId, final String options) {
+        this.projectName = projectName;
+        this.commitId = commitId;
+        this.options = options;
+    }
+
+    /**
+     * Return the pattern matching the paths of diff requests.
+     *
+     * Gerrit resolves views without the plugin name prefix when no other
+     * view has the same name, and ignores a trailing slash, so both forms are
+     * matched. Review Board requests {@code /a/projects/<p>/commits/<id>/diff/}.
+     * @param pluginName The name of this plugin.
+     * @return The pattern. The first group is the project name, and the
+     *         second is the commit ID.
+     */
+    static Pattern pathPattern(final String pluginName) {
+        return Pattern.compile(String.format(
+            "^/(?:a/)?projects/([^/]+)/commits/([^/]+)/(?:%s~)?(?:file-)?diff/?$", Pattern.quote(pluginName)));
+    }
+
+    /**
+     * Return whether a request is a GET request for a diff.
+     * @param pathPattern The pattern returned by {@link #pathPattern(String)}.
+     * @param request The request.
+     * @return Whether or not the request is for a diff.
+     */
+    static boolean isDiffRequest(final Pattern pathPattern, final ServletRequest request) {
+        return match(pathPattern, request) != null;
+    }
+
+    /**
+     * Parse a request for a diff.
+     * @param pathPattern The pattern returned by {@link #pathPattern(String)}.
+     * @param request The request.
+     * @return The diff request, or {@code null} if the request is not a GET
+     *         request for a diff.
+     */
+    static DiffRequest parse(final Pattern pathPattern, final ServletRequest request) {
+        final Matcher m = match(pathPattern, request);
+
+        if (m == null) {
+            return null;
+        }
+
+        final HttpServletRequest req = (HttpServletRequest) request;
+
+        final String projectName = Url.decode(m.group(1));
+        final String commit = Url.decode(m.group(2));
+        final String[] paths = req.getParameterValues("path");
+        final String noRenames = req.getParameter("no-renames");
+
+        return new DiffRequest(
+            // Gerrit accepts project names with a .git suffix.
+            projectName.endsWith(Constants.DOT_GIT_EXT)
+                ? projectName.substring(0, projectName.length() - Constants.DOT_GIT_EXT.length())
+                : projectName,
+            ObjectId.isId(commit) ? ObjectId.fromString(commit) : null,
+            DiffResource.canonicalOptions(
+                noRenames == null || !TRUE_VALUES.contains(noRenames.toLowerCase(Locale.US)),
+                paths == null ? Collections.<String>emptySortedSet() : new TreeSet<>(Arrays.asList(paths))));
+    }
+
+    /**
+     * Match the path of a GET request against the diff path pattern.
+     * @param pathPattern The pattern returned by {@link #pathPattern(String)}.
+     * @param request The request.
+     * @return The matched path, or {@code null} if the request is not a GET
+     *         request for a diff.
+     */
+    private static Matcher match(final Pattern pathPattern, final ServletRequest request) {
+        if (!(request instanceof HttpServletRequest)) {
+            return null;
+        }
+
+        final HttpServletRequest req = (HttpServletRequest) request;
+
+        if (!"GET".equals(req.getMethod())) {
+            return null;
+        }
+
+        final Matcher m = pathPattern.matcher(req.getRequestURI().substring(req.getContextPath().length()));
+
+        return m.matches() ? m : null;
+    }
+
+    /**
+     * Return the name of the project.
+     * @return The name of the project.
+     */
+    String getProjectName() {
+        return projectName;
+    }
+
+    /**
+     * Return the key of the diff in the {@link DiffCache}.
+     * @return The cache key, or {@code null} if the commit is not given by
+     *         its full ID.
+     */
+    DiffCache.Key getCacheKey() {
+        return commitId == null ? null : new DiffCache.Key(projectName, commitId, options);
+    }
+}
@@ -1,49 +1,166 @@
 package org.reviewboard.rbgerrit;
 
+import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.ETagView;
+import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.RestApiException;
-import com.google.gerrit.extensions.restapi.RestReadView;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.CommitResource;
 import com.google.inject.Inject;
-import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
  * A resource for computing diffs of commits.
  */
-public class DiffResource implements RestReadView<CommitResource> {
+public class DiffResource implements ETagView<CommitResource> {
     private static final String DIFF_MIMETYPE = "text/x-patch";
     private static final Logger log = LoggerFactory.getLogger(DiffResource.class);
 
     private final GitRepositoryManager repoManager;
+    private final Configuration config;
+    private final DiffCache diffCache;
+    private final DiffThrottle throttle;
+    private final Metrics metrics;
+    private final SortedSet<String> paths = new TreeSet<>();
+    private boolean detectRenames = true;
+    private boolean compressed = false;
+
+    /**
+     * Add a path to limit the diff to.
+     *
+     * This may be given multiple times. Paths that are directories include
+     * every file beneath them. If no paths are given, the diff includes every
+     * changed file.
+     *
+     * @param path The path of a file or directory, relative to the root of
+     *             the repository.
+     */
+    @Option(name="--path", metaVar="PATH", usage="Only include changes to PATH in the diff.")
+    public void addPath(final String path) { paths.add(path); }
+
+    /**
+     * Set whether or not to skip rename detection.
+     *
+     * By default, renames are detected if the repository's
+     * {@code diff.renames} setting enables them.
+     *
+     * @param noRenames Whether or not to skip rename detection.
+     */
+    @Option(name="--no-renames", usage="Do not detect renames.")
+    public void setNoRenames(final boolean noRenames) { this.detectRenames = !noRenames; }
+
+    /**
+     * Set whether or not to return the diff gzip-compressed.
+     *
+     * The diff is returned as an {@code application/gzip} file, rather than
+     * with a {@code Content-Encoding}. Clients that only want the transfer
+     * compressed should send {@code Accept-Encoding: gzip} instead, which is
+     * negotiated by the {@link DiffEncodingFilter}.
+     *
+     * @param compressed Whether or not to return the diff gzip-compressed.
+     */
+    @Option(name="--compressed", usage="Return the diff gzip-compressed, as application/gzip.")
+    public void setCompressed(final boolean compressed) { this.compressed = compressed; }
 
     /**
      * Construct the DiffResource.
      * @param manager The git repository manager.
+     * @param config The plugin configuration.
+     * @param diffCache The cache of formatted diffs.
+     * @param throttle The limit on diffs computed at once.
+     * @param metrics The plugin metrics.
      */
     @Inject
-    public DiffResource(final GitRepositoryManager manager) {
+    public DiffResource(final GitRepositoryManager manager, final Configuration config, final DiffCache diffCache,
+                        final DiffThrottle throttle, final Metrics metrics) {
         repoManager = manager;
+        this.config = config;
+        this.diffCache = diffCache;
+        this.throttle = throttle;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Return the ETag of the diff.
+     *
+     * Commits are immutable, so the ETag is derived from the commit ID alone.
+     * Gerrit checks it before parsing options, so it cannot include them.
+     * @param parentResource The parent commit resource.
+     * @return The ETag.
+     */
+    @Override
+    public String getETag(final CommitResource parentResource) {
+        return String.format("\"%s-diff\"", parentResource.getCommit().getName());
+    }
+
+    /**
+     * Return a canonical representation of the options used to format the
+     * diff.
+     * @return The options, or an empty string if the defaults are used.
+     */
+    private String getOptions() {
+        return canonicalOptions(detectRenames, paths);
+    }
+
+    /**
+     * Return a canonical representation of diff options.
+     * @param detectRenames Whether or not renames are detected.
+     * @param paths The sorted paths the diff is limited to.
+     * @return The options, or an empty string if the defaults are used.
+     */
+    static String canonicalOptions(final boolean detectRenames, final SortedSet<String> paths) {
+        final StringBuilder options = new StringBuilder();
+
+        if (!detectRenames) {
+            options.append("no-renames\n");
+        }
+
+        for (final String path : paths) {
+            options.append("path=").append(path).append('\n');
+        }
+
+        return options.toString();
     }
 
     /**
      * Return the diff of the given commit.
+     *
+     * Diffs are served from the {@link DiffCache} when possible, in which
+     * case the repository is not opened at all. Otherwise, the diff is
+     * streamed to the client as it is formatted, and cached afterwards if it
+     * is small enough. Concurrent requests for a diff that is already being
+     * formatted wait for that diff instead of formatting it again.
+     *
+     * Diffs are sent gzip-compressed if {@code --compressed} is given or the
+     * client accepts gzip, in which case cached diffs are sent exactly as
+     * they are stored.
      * @param parentResource The parent commit resource.
      * @return The diff of the given commit.
      * @throws RestApiException If an invalid commit (i.e., one with 0 or 2+
-     *                          parents) is given.
+     *                          parents) or an invalid path is given.
      */
     @Override
-    public BinaryResult apply(final CommitResource parentResource) throws RestApiException {
+    public Response<BinaryResult> apply(final CommitResource parentResource) throws RestApiException {
+        final long start = System.nanoTime();
         final Project.NameKey projectName = parentResource.getProject().getProject().getNameKey();
         final RevCommit commit = parentResource.getCommit();
         final int parentCount = commit.getParentCount();
@@ -54,34 +171,271 @@ public class DiffResource implements RestReadView<CommitResource> {
             throw new RestApiException("Cannot retrieve diff of commit with multiple parents.");
         }
 
-        try (final Repository repository = repoManager.openRepository(projectName)) {
-            return BinaryResult
-                .create(diff(repository, commit))
-                .setContentType(DIFF_MIMETYPE);
+        for (final String path : paths) {
+            if (path.isEmpty() || path.startsWith("/") || path.endsWith("/")) {
+                throw new BadRequestException(String.format("Invalid path '%s'.", path));
+            }
+        }
+
+        final boolean gzip = compressed || DiffEncodingFilter.negotiateGzip();
+        final DiffCache.Key key = new DiffCache.Key(projectName.get(), commit, getOptions());
+        final byte[] cached = diffCache.getIfPresent(key);
+        final BinaryResult result;
+
+        metrics.recordCacheLookup(DiffCache.NAME, cached != null);
+
+        if (cached != null) {
+            metrics.recordDiffSize(projectName, Compression.uncompressedSize(cached));
+            result = Compression.fromCompressed(cached, !gzip);
+        } else {
+            result = new BinaryResult() {
+                @Override
+                public void writeTo(final OutputStream stream) throws IOException {
+                    final CompletableFuture<byte[]> inProgress = diffCache.claim(key);
+
+                    if (inProgress == null) {
+                        // Waiting requests are released as soon as the diff
+                        // turns out to be too large to share, rather than
+                        // once it has been sent.
+                        final AtomicBoolean completed = new AtomicBoolean(false);
+                        byte[] diff = null;
+
+                        try {
+                            diff = writeThrottledDiff(projectName, commit, key, gzip, stream, () -> {
+                                if (completed.compareAndSet(false, true)) {
+                                    diffCache.complete(key, null);
+                                }
+                            });
+                        } finally {
+                            if (completed.compareAndSet(false, true)) {
+                                diffCache.complete(key, diff);
+                            }
+                        }
+                    } else {
+                        final byte[] diff = await(inProgress);
+
+                        if (diff == null) {
+                            // The diff was too large to share, so it has to
+                            // be formatted again.
+                            writeThrottledDiff(projectName, commit, key, gzip, stream, null);
+                        } else {
+                            metrics.recordDiffSize(projectName, Compression.uncompressedSize(diff));
+                            Compression.fromCompressed(diff, !gzip).writeTo(stream);
+                        }
+                    }
+                }
+            };
+        }
+
+        final BinaryResult response = metrics
+            .instrument(Metrics.DIFF, projectName, start, result)
+            .setContentType(compressed ? Compression.GZIP_MIMETYPE : DIFF_MIMETYPE);
+
+        return Response
+            .ok(gzip ? response.disableGzip() : response)
+            .caching(config.getImmutableCacheControl());
+    }
+
+    /**
+     * Format a diff and write it to a stream.
+     *
+     * It is added to the cache if it is small enough and was not truncated.
+     * @param projectName The name of the project.
+     * @param commit The commit.
+     * @param key The cache key of the diff.
+     * @param gzip Whether or not to write the diff gzip-compressed.
+     * @param stream The stream to write the diff to.
+     * @param onTooLarge Called once the diff grows too large to keep in
+     *                   memory, or {@code null}.
+     * @return The gzip-compressed diff, or {@code null} if it was too large
+     *         to keep in memory.
+     * @throws IOException If an error occurs reading the repository or
+     *                     writing the diff.
+     */
+    private byte[] writeDiff(final Project.NameKey projectName, final RevCommit commit, final DiffCache.Key key,
+                             final boolean gzip, final OutputStream stream, final Runnable onTooLarge)
+        throws IOException {
+        final boolean truncated;
+        final CapturingOutputStream output;
+
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final OutputStream out = gzip
+                 ? new GZIPOutputStream(Compression.unclosable(stream), 8192)
+                 : Compression.unclosable(stream)) {
+            output = new CapturingOutputStream(out, config.getMaxCachedPatchSize(), onTooLarge);
+            truncated = new DiffWriter(repository)
+                .setMaxPatchSize(config.getMaxPatchSize())
+                .setMaxFileSize(config.getMaxDiffFileSize())
+                .setPaths(paths)
+                .setDetectRenames(detectRenames)
+                .write(commit, output);
         } catch (final IOException e) {
             log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
 
-            throw new RestApiException(String.format("Could not retrieve diff: %s", e.toString()));
+            throw e;
+        }
+
+        final byte[] captured = output.getCaptured();
+        metrics.recordDiffSize(projectName, output.getCount());
+
+        if (captured == null) {
+            return null;
         }
+
+        final byte[] diff = Compression.compress(captured);
+
+        if (!truncated) {
+            diffCache.put(key, diff);
+        }
+
+        return diff;
     }
 
     /**
-     * Return the diff of a commit that has a single parent.
-     * @param repo The repository containing the commit.
-     * @param commit The commit for which the diff will be computed.
-     * @return The diff.
-     * @throws IOException If an error occurs while attempting to read the Git
-     *                     object store.
+     * Format a diff while holding a slot from the {@link DiffThrottle}.
+     *
+     * Requests admitted by the {@link DiffThrottleFilter} already hold a
+     * slot. Requests it let through without one, because the diff was cached
+     * or already being formatted, take one here instead, since the diff may
+     * have been evicted or turned out too large to share. If none becomes
+     * free in time, the request is rejected as the filter would have
+     * rejected it.
+     * @param projectName The name of the project.
+     * @param commit The commit.
+     * @param key The cache key of the diff.
+     * @param gzip Whether or not to write the diff gzip-compressed.
+     * @param stream The stream to write the diff to.
+     * @param onTooLarge Called once the diff grows too large to keep in
+     *                   memory, or {@code null}.
+     * @return The gzip-compressed diff, or {@code null} if it was too large
+     *         to keep in memory.
+     * @throws IOException If no slot becomes free in time, or an error occurs
+     *                     reading the repository or writing the diff.
      */
-    private byte[] diff(final Repository repo, final RevCommit commit) throws IOException {
-        assert commit.getParentCount() == 0;
+    private byte[] writeThrottledDiff(final Project.NameKey projectName, final RevCommit commit,
+                                      final DiffCache.Key key, final boolean gzip, final OutputStream stream,
+                                      final Runnable onTooLarge) throws IOException {
+        if (DiffThrottleFilter.holdsSlot()) {
+            return writeDiff(projectName, commit, key, gzip, stream, onTooLarge);
+        }
+
+        final boolean acquired;
 
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        final RevCommit parent = commit.getParent(0);
+        try {
+            acquired = throttle.acquire(projectName.get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-        final DiffFormatter fmt = new DiffFormatter(output);
-        fmt.setRepository(repo);
-        fmt.format(parent.getTree(), commit.getTree());
-        return output.toByteArray();
+            throw new InterruptedIOException("Interrupted while waiting to compute diff");
+        }
+
+        if (!acquired) {
+            metrics.recordThrottled(projectName);
+            DiffThrottleFilter.rejectCurrent();
+
+            throw new IOException("Too many diffs are being computed");
+        }
+
+        try {
+            return writeDiff(projectName, commit, key, gzip, stream, onTooLarge);
+        } finally {
+            throttle.release(projectName.get());
+        }
+    }
+
+    /**
+     * Wait for a diff that another request is computing.
+     * @param inProgress The result of the other request.
+     * @return The gzip-compressed diff, or {@code null} if it could not be
+     *         shared.
+     * @throws IOException If the thread is interrupted while waiting.
+     */
+    private static byte[] await(final CompletableFuture<byte[]> inProgress) throws IOException {
+        try {
+            return inProgress.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for diff");
+        } catch (final ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An output stream that keeps a copy of everything written to it.
+     *
+     * The copy is discarded once it grows past a limit, so that only patches
+     * small enough to be cached are kept in memory.
+     */
+    private static class CapturingOutputStream extends FilterOutputStream {
+        private final long limit;
+        private final Runnable onOverflow;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private long count = 0;
+
+        /**
+         * Construct a new CapturingOutputStream.
+         * @param out The underlying stream.
+         * @param limit The maximum number of bytes to capture.
+         * @param onOverflow Called once more bytes have been written than can
+         *                   be captured, or {@code null}.
+         */
+        CapturingOutputStream(final OutputStream out, final long limit, final Runnable onOverflow) {
+            super(out);
+            this.limit = limit;
+            this.onOverflow = onOverflow;
+        }
+
+        /**
+         * Return the captured bytes.
+         * @return The captured bytes, or {@code null} if more bytes were
+         *         written than can be captured.
+         */
+        byte[] getCaptured() {
+            return captured == null ? null : captured.toByteArray();
+        }
+
+        /**
+         * Return the number of bytes written.
+         * @return The number of bytes written.
+         */
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            capture(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        /**
+         * Capture bytes, unless the limit has been exceeded.
+         * @param b The bytes.
+         * @param off The offset of the first byte.
+         * @param len The number of bytes.
+         */
+        private void capture(final byte[] b, final int off, final int len) {
+            count += len;
+
+            if (captured == null) {
+                return;
+            } else if (captured.size() + len > limit) {
+                captured = null;
+
+                if (onOverflow != null) {
+                    onOverflow.run();
+                }
+            } else {
+                captured.write(b, off, len);
+            }
+        }
     }
 }
@@ -0,0 +1,194 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the number of diffs that are computed at once.
+ *
+ * A few huge diffs can otherwise occupy every HTTP thread, starving cheap
+ * requests for blobs and commits. Diffs are limited globally and per
+ * project. Requests beyond the limits wait for a bounded time in a bounded
+ * queue, and are rejected once either is exhausted so that the client can
+ * retry later.
+ *
+ * The semaphore of a project only exists while requests for that project
+ * hold or wait for a slot, so that the number of projects tracked is bounded
+ * by the number of requests in flight.
+ */
+@Singleton
+public class DiffThrottle {
+    private final Semaphore global;
+    private final Semaphore queue;
+    private final int perProjectLimit;
+    private final long timeoutNanos;
+    private final ConcurrentMap<String, ProjectSlots> projects = new ConcurrentHashMap<>();
+
+    /**
+     * Construct the DiffThrottle.
+     * @param config The plugin configuration.
+     */
+    @Inject
+    public DiffThrottle(final Configuration config) {
+        global = config.getMaxConcurrentDiffs() > 0 ? new Semaphore(config.getMaxConcurrentDiffs(), true) : null;
+        queue = new Semaphore(Math.max(config.getMaxQueuedDiffs(), 0));
+        perProjectLimit = config.getMaxConcurrentDiffsPerProject();
+        timeoutNanos = TimeUnit.SECONDS.toNanos(config.getDiffQueueTimeout());
+    }
+
+    /**
+     * Acquire a slot to compute a diff.
+     *
+     * If a slot is acquired, it must be released with
+     * {@link #release(String)}.
+     * @param projectName The name of the project.
+     * @return Whether or not a slot was acquired.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting.
+     */
+    boolean acquire(final String projectName) throws InterruptedException {
+        final Semaphore project = retainProject(projectName);
+        boolean acquired = false;
+
+        try {
+            acquired = acquire(project);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                releaseProject(projectName);
+            }
+        }
+    }
+
+    /**
+     * Acquire a slot, waiting in the queue if necessary.
+     * @param project The semaphore of the project, if projects are limited.
+     * @return Whether or not a slot was acquired.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting.
+     */
+    private boolean acquire(final Semaphore project) throws InterruptedException {
+        if (tryAcquireNow(project)) {
+            return true;
+        } else if (!queue.tryAcquire()) {
+            return false;
+        }
+
+        try {
+            final long deadline = System.nanoTime() + timeoutNanos;
+
+            if (project != null && !project.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+
+            if (global != null && !global.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                if (project != null) {
+                    project.release();
+                }
+
+                return false;
+            }
+
+            return true;
+        } finally {
+            queue.release();
+        }
+    }
+
+    /**
+     * Release a slot acquired with {@link #acquire(String)}.
+     * @param projectName The name of the project.
+     */
+    void release(final String projectName) {
+        if (global != null) {
+            global.release();
+        }
+
+        final ProjectSlots slots = projects.get(projectName);
+
+        if (slots != null) {
+            slots.semaphore.release();
+            releaseProject(projectName);
+        }
+    }
+
+    /**
+     * Acquire a slot without waiting.
+     * @param project The semaphore of the project, if projects are limited.
+     * @return Whether or not a slot was acquired.
+     */
+    private boolean tryAcquireNow(final Semaphore project) {
+        if (project != null && !project.tryAcquire()) {
+            return false;
+        }
+
+        if (global != null && !global.tryAcquire()) {
+            if (project != null) {
+                project.release();
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the semaphore limiting the diffs of a project, creating it if
+     * needed.
+     *
+     * Every call must be matched by a call to
+     * {@link #releaseProject(String)}.
+     * @param projectName The name of the project.
+     * @return The semaphore, or {@code null} if projects are not limited.
+     */
+    private Semaphore retainProject(final String projectName) {
+        if (perProjectLimit <= 0) {
+            return null;
+        }
+
+        return projects.compute(projectName, (name, slots) -> {
+            final ProjectSlots result = slots == null ? new ProjectSlots(perProjectLimit) : slots;
+            result.users++;
+            return result;
+        }).semaphore;
+    }
+
+    /**
+     * Stop using the semaphore of a project.
+     *
+     * The semaphore is removed once no request uses it, at which point all
+     * of its permits have been released.
+     * @param projectName The name of the project.
+     */
+    private void releaseProject(final String projectName) {
+        projects.computeIfPresent(projectName, (name, slots) -> --slots.users == 0 ? null : slots);
+    }
+
+    /**
+     * The slots of a single project.
+     */
+    private static class ProjectSlots {
+        private final Semaphore semaphore;
+
+        /**
+         * The number of requests holding or waiting for a slot. This is only
+         * accessed while the map entry is locked.
+         */
+        private int users = 0;
+
+        /**
+         * Construct a new ProjectSlots.
+         * @param limit The number of slots.
+         */
+        ProjectSlots(final int limit) {
+            semaphore = new Semaphore(limit, true);
+        }
+    }
+}
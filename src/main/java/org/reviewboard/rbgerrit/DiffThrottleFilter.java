@@ -0,0 +1,212 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.httpd.AllRequestFilter;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+
+/**
+ * A filter that applies the {@link DiffThrottle} to diff requests.
+ *
+ * REST views cannot choose their response status or headers, so requests
+ * are admitted here instead. Requests that cannot be admitted are rejected
+ * with {@code 503 Service Unavailable} and a {@code Retry-After} header.
+ *
+ * Only requests that will compute a diff need a slot. Requests for diffs
+ * that are cached, or that another request is already computing, are let
+ * through without one, as are requests for projects that do not exist.
+ *
+ * Whether the current request holds a slot is made available to the
+ * {@link DiffResource}, which must take one itself if a shared diff turns out
+ * to be too large to wait for.
+ */
+@Singleton
+public class DiffThrottleFilter extends AllRequestFilter {
+    /**
+     * How long clients should wait before retrying a rejected request, in
+     * seconds.
+     */
+    private static final int RETRY_AFTER_SECONDS = 10;
+
+    /**
+     * The admission of the diff request being handled by the current thread.
+     */
+    private static final ThreadLocal<Admission> admission = new ThreadLocal<>();
+
+    private final DiffThrottle throttle;
+    private final DiffCache diffCache;
+    private final ProjectCache projectCache;
+    private final Metrics metrics;
+    private final Pattern diffPath;
+
+    /**
+     * Construct the DiffThrottleFilter.
+     * @param throttle The diff throttle.
+     * @param diffCache The cache of formatted diffs.
+     * @param projectCache The project cache.
+     * @param metrics The plugin metrics.
+     * @param pluginName The name of this plugin.
+     */
+    @Inject
+    public DiffThrottleFilter(final DiffThrottle throttle, final DiffCache diffCache,
+                              final ProjectCache projectCache, final Metrics metrics,
+                              @PluginName final String pluginName) {
+        this.throttle = throttle;
+        this.diffCache = diffCache;
+        this.projectCache = projectCache;
+        this.metrics = metrics;
+        this.diffPath = DiffRequest.pathPattern(pluginName);
+    }
+
+    /**
+     * Admit or reject a request.
+     * @param request The request.
+     * @param response The response.
+     * @param chain The rest of the filter chain.
+     * @throws IOException If an error occurs handling the request.
+     * @throws ServletException If an error occurs handling the request.
+     */
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException {
+        final DiffRequest diff = DiffRequest.parse(diffPath, request);
+
+        if (diff == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletResponse res = (HttpServletResponse) response;
+
+        if (!needsSlot(diff)) {
+            admit(request, res, chain, false);
+            return;
+        }
+
+        final String projectName = diff.getProjectName();
+
+        boolean acquired;
+
+        try {
+            acquired = throttle.acquire(projectName);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            metrics.recordThrottled(new Project.NameKey(projectName));
+            reject(res);
+            return;
+        }
+
+        try {
+            admit(request, res, chain, true);
+        } finally {
+            throttle.release(projectName);
+        }
+    }
+
+    /**
+     * Return whether the current request was admitted with a slot.
+     * @return Whether or not the current request holds a slot.
+     */
+    static boolean holdsSlot() {
+        final Admission current = admission.get();
+
+        return current != null && current.holdsSlot;
+    }
+
+    /**
+     * Reject the current request, if its response has not been started.
+     *
+     * This is used when a request that was let through without a slot later
+     * needs one and none becomes free in time.
+     * @throws IOException If an error occurs writing the response.
+     */
+    static void rejectCurrent() throws IOException {
+        final Admission current = admission.get();
+
+        if (current != null && !current.response.isCommitted()) {
+            current.response.reset();
+            reject(current.response);
+        }
+    }
+
+    /**
+     * Pass an admitted request on to the rest of the filter chain.
+     * @param request The request.
+     * @param response The response.
+     * @param chain The rest of the filter chain.
+     * @param holdsSlot Whether or not the request holds a slot.
+     * @throws IOException If an error occurs handling the request.
+     * @throws ServletException If an error occurs handling the request.
+     */
+    private static void admit(final ServletRequest request, final HttpServletResponse response,
+                              final FilterChain chain, final boolean holdsSlot)
+        throws IOException, ServletException {
+        admission.set(new Admission(response, holdsSlot));
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            admission.remove();
+        }
+    }
+
+    /**
+     * Reject a request with {@code 503 Service Unavailable}.
+     * @param res The response.
+     * @throws IOException If an error occurs writing the response.
+     */
+    private static void reject(final HttpServletResponse res) throws IOException {
+        res.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                      "Too many diffs are being computed. Try again later.");
+    }
+
+    /**
+     * Return whether a diff request may compute a diff, and so needs a slot.
+     * @param diff The diff request.
+     * @return Whether or not the request needs a slot.
+     */
+    private boolean needsSlot(final DiffRequest diff) {
+        if (projectCache.get(new Project.NameKey(diff.getProjectName())) == null) {
+            // Gerrit will reject the request before any diff is computed.
+            return false;
+        }
+
+        final DiffCache.Key key = diff.getCacheKey();
+
+        return key == null || (diffCache.getIfPresent(key) == null && !diffCache.isPending(key));
+    }
+
+    /**
+     * How a diff request was admitted.
+     */
+    private static class Admission {
+        private final HttpServletResponse response;
+        private final boolean holdsSlot;
+
+        /**
+         * Construct a new Admission.
+         * @param response The response of the request.
+         * @param holdsSlot Whether or not the request holds a slot.
+         */
+        Admission(final HttpServletResponse response, final boolean holdsSlot) {
+            this.response = response;
+            this.holdsSlot = holdsSlot;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package org.reviewboard.rbgerrit;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.util.QuotedString;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Writes the diff of a commit against its parent to an output stream.
+ *
+ * The diff is formatted directly into the given stream, so it is never held
+ * in memory in full. If the patch grows past the maximum patch size, output
+ * stops and a truncation marker is written instead of the rest of the patch.
+ *
+ * Before a file's changes are diffed, the sizes of its blobs are read from
+ * their object headers, and the start of their content is checked. Changes to
+ * files that are larger than the maximum file size or that look binary are
+ * written as a header naming both blobs in full, followed by a "Binary files
+ * differ" line. Large blobs are never loaded in full. Blobs loaded to be
+ * checked are handed to the {@link DiffFormatter}, so that text files are
+ * only inflated once.
+ */
+public class DiffWriter {
+    private final Repository repository;
+    private long maxPatchSize = 0;
+    private long maxFileSize = 0;
+    private Collection<String> paths = Collections.emptyList();
+    private boolean detectRenames = true;
+
+    /**
+     * Construct a new DiffWriter.
+     * @param repository The repository containing the commits.
+     */
+    public DiffWriter(final Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Set the maximum size of the patch.
+     * @param maxPatchSize The maximum size of the patch in bytes, or 0 for no
+     *                     limit.
+     * @return This DiffWriter.
+     */
+    public DiffWriter setMaxPatchSize(final long maxPatchSize) {
+        this.maxPatchSize = maxPatchSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of a file whose changes are diffed.
+     * @param maxFileSize The maximum size of either version of a file in
+     *                    bytes, or 0 for no limit.
+     * @return This DiffWriter.
+     */
+    public DiffWriter setMaxFileSize(final long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    /**
+     * Set the paths to limit the diff to.
+     *
+     * Subtrees that do not contain any of the paths are not walked.
+     * @param paths The paths of files or directories, or an empty collection
+     *              to include every changed file.
+     * @return This DiffWriter.
+     */
+    public DiffWriter setPaths(final Collection<String> paths) {
+        this.paths = paths;
+        return this;
+    }
+
+    /**
+     * Set whether or not to detect renames.
+     * @param detectRenames Whether or not to detect renames. If set, renames
+     *                      are detected when enabled by the repository's
+     *                      {@code diff.renames} setting.
+     * @return This DiffWriter.
+     */
+    public DiffWriter setDetectRenames(final boolean detectRenames) {
+        this.detectRenames = detectRenames;
+        return this;
+    }
+
+    /**
+     * Write the diff of a commit that has a single parent.
+     * @param commit The commit for which the diff will be computed.
+     * @param stream The stream to write the diff to.
+     * @return Whether or not the diff was truncated.
+     * @throws IOException If an error occurs while attempting to read the Git
+     *                     object store or write to the stream.
+     */
+    public boolean write(final RevCommit commit, final OutputStream stream) throws IOException {
+        assert commit.getParentCount() == 1;
+
+        final OutputStream output = maxPatchSize > 0 ? new LimitedOutputStream(stream, maxPatchSize) : stream;
+
+        try (final BlobCache blobs = new BlobCache(repository.newObjectReader());
+             final RevWalk walk = new RevWalk(blobs);
+             final DiffFormatter fmt = new DiffFormatter(output)) {
+            final RevCommit parent = walk.parseCommit(commit.getParent(0));
+
+            fmt.setReader(blobs, repository.getConfig());
+
+            if (!paths.isEmpty()) {
+                fmt.setPathFilter(PathFilterGroup.createFromStrings(paths));
+            }
+
+            if (!detectRenames) {
+                fmt.setDetectRenames(false);
+            }
+
+            for (final DiffEntry entry : fmt.scan(parent.getTree(), walk.parseCommit(commit).getTree())) {
+                // When the content is unchanged, such as for a mode change
+                // or an exact rename, the formatter writes only the header
+                // and never loads the blobs.
+                if (!entry.getOldId().equals(entry.getNewId())
+                    && (isLargeOrBinary(blobs, entry.getOldMode(), entry.getOldId())
+                        || isLargeOrBinary(blobs, entry.getNewMode(), entry.getNewId()))) {
+                    fmt.flush();
+                    writeBinaryHeader(entry, output);
+                } else {
+                    fmt.format(entry);
+                }
+
+                blobs.clear();
+            }
+
+            fmt.flush();
+        } catch (final PatchTooLargeException e) {
+            stream.write(Constants.encode(String.format(
+                "\n[gerrit-reviewboard] Diff truncated: the patch exceeds the maximum size of %d bytes.\n",
+                maxPatchSize
+            )));
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return whether one side of a change is too large to diff or is binary.
+     *
+     * Only the object header is read to find the size of the blob. Blobs
+     * within the size limit are loaded through the cache, so that the
+     * formatter can reuse them.
+     * @param blobs The cache of loaded blobs.
+     * @param mode The mode of the file on this side of the change.
+     * @param id The ID of the blob on this side of the change.
+     * @return Whether or not the content should not be diffed.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private boolean isLargeOrBinary(final BlobCache blobs, final FileMode mode, final AbbreviatedObjectId id)
+        throws IOException {
+        if (mode.getObjectType() != Constants.OBJ_BLOB) {
+            // The file does not exist on this side, or is a submodule.
+            return false;
+        }
+
+        final ObjectId objId = id.toObjectId();
+
+        if (maxFileSize > 0 && blobs.getObjectSize(objId, Constants.OBJ_BLOB) > maxFileSize) {
+            return true;
+        }
+
+        return BinaryDetector.isBinary(blobs.load(objId));
+    }
+
+    /**
+     * Write the header of a change without its content.
+     *
+     * This is formatted as Git formats changes to binary files, except that
+     * the blob IDs are not abbreviated.
+     * @param entry The change.
+     * @param output The stream to write the header to.
+     * @throws IOException If an error occurs writing to the stream.
+     */
+    private static void writeBinaryHeader(final DiffEntry entry, final OutputStream output) throws IOException {
+        final DiffEntry.ChangeType changeType = entry.getChangeType();
+        final String oldPath = QuotedString.GIT_PATH.quote("a/" + entry.getOldPath());
+        final String newPath = QuotedString.GIT_PATH.quote("b/" + entry.getNewPath());
+        final StringBuilder header = new StringBuilder();
+
+        header.append(String.format("diff --git %s %s\n",
+                                    changeType == DiffEntry.ChangeType.ADD ? newPath : oldPath,
+                                    changeType == DiffEntry.ChangeType.DELETE ? oldPath : newPath));
+
+        switch (changeType) {
+            case ADD:
+                header.append(String.format("new file mode %06o\n", entry.getNewMode().getBits()));
+                break;
+
+            case DELETE:
+                header.append(String.format("deleted file mode %06o\n", entry.getOldMode().getBits()));
+                break;
+
+            case RENAME:
+            case COPY:
+                final String verb = changeType == DiffEntry.ChangeType.RENAME ? "rename" : "copy";
+
+                header.append(String.format("similarity index %d%%\n", entry.getScore()));
+                header.append(String.format("%s from %s\n", verb, QuotedString.GIT_PATH.quote(entry.getOldPath())));
+                header.append(String.format("%s to %s\n", verb, QuotedString.GIT_PATH.quote(entry.getNewPath())));
+                break;
+
+            default:
+                break;
+        }
+
+        final boolean modeChanged = (changeType == DiffEntry.ChangeType.MODIFY
+                                     || changeType == DiffEntry.ChangeType.RENAME
+                                     || changeType == DiffEntry.ChangeType.COPY)
+            && !entry.getOldMode().equals(entry.getNewMode());
+
+        if (modeChanged) {
+            header.append(String.format("old mode %06o\n", entry.getOldMode().getBits()));
+            header.append(String.format("new mode %06o\n", entry.getNewMode().getBits()));
+        }
+
+        header.append(String.format("index %s..%s", entry.getOldId().name(), entry.getNewId().name()));
+
+        if (changeType == DiffEntry.ChangeType.MODIFY && !modeChanged) {
+            header.append(String.format(" %06o", entry.getNewMode().getBits()));
+        }
+
+        header.append(String.format("\nBinary files %s and %s differ\n",
+                                    changeType == DiffEntry.ChangeType.ADD ? "/dev/null" : oldPath,
+                                    changeType == DiffEntry.ChangeType.DELETE ? "/dev/null" : newPath));
+
+        output.write(Constants.encode(header.toString()));
+    }
+
+    /**
+     * An object reader that keeps the blobs of the current change loaded.
+     *
+     * Blobs loaded with {@link #load(ObjectId)} are returned again when the
+     * formatter opens them, instead of being read from the repository a
+     * second time.
+     */
+    private static class BlobCache extends ObjectReader.Filter {
+        private final ObjectReader reader;
+        private final Map<ObjectId, ObjectLoader> loaded = new HashMap<>();
+
+        /**
+         * Construct a new BlobCache.
+         * @param reader The underlying reader, which is closed along with
+         *               this one.
+         */
+        BlobCache(final ObjectReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        protected ObjectReader delegate() {
+            return reader;
+        }
+
+        /**
+         * Load a blob and keep it until {@link #clear()} is called.
+         * @param id The ID of the blob.
+         * @return The loader for the blob.
+         * @throws IOException If an error occurs reading the blob.
+         */
+        ObjectLoader load(final ObjectId id) throws IOException {
+            ObjectLoader loader = loaded.get(id);
+
+            if (loader == null) {
+                loader = reader.open(id, Constants.OBJ_BLOB);
+                loaded.put(id, loader);
+            }
+
+            return loader;
+        }
+
+        /**
+         * Forget the blobs loaded so far.
+         */
+        void clear() {
+            loaded.clear();
+        }
+
+        @Override
+        public ObjectLoader open(final AnyObjectId id, final int typeHint) throws IOException {
+            final ObjectLoader loader = loaded.get(id);
+
+            return loader != null ? loader : reader.open(id, typeHint);
+        }
+    }
+
+    /**
+     * Thrown when the patch exceeds the maximum patch size.
+     */
+    private static class PatchTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * An output stream that stops accepting data after a number of bytes.
+     *
+     * Once the limit is reached, the bytes up to the limit are written and a
+     * {@link PatchTooLargeException} is thrown.
+     */
+    private static class LimitedOutputStream extends FilterOutputStream {
+        private long remaining;
+
+        /**
+         * Construct a new LimitedOutputStream.
+         * @param out The underlying stream.
+         * @param limit The maximum number of bytes to write.
+         */
+        LimitedOutputStream(final OutputStream out, final long limit) {
+            super(out);
+            remaining = limit;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (remaining <= 0) {
+                throw new PatchTooLargeException();
+            }
+
+            out.write(b);
+            remaining--;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len > remaining) {
+                out.write(b, off, (int) remaining);
+                remaining = 0;
+                throw new PatchTooLargeException();
+            }
+
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The underlying stream belongs to the caller.
+            flush();
+        }
+    }
+}
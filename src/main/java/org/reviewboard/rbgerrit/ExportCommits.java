@@ -0,0 +1,266 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.OutputFormat;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import org.eclipse.jgit.errors.AmbiguousObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+
+/**
+ * A resource that streams the full history of a branch.
+ *
+ * The non-merge commits reachable from the starting revision are written as
+ * newline-delimited JSON, one {@link CommitListResource.CommitInfo} per line,
+ * as the history is walked. This lets a client import a whole repository in
+ * one request, instead of one request per page of {@code all-commits}.
+ *
+ * Commits are not held in memory once they are written. With
+ * {@code --first-parent}, the walk's bookkeeping is discarded periodically as
+ * well, so memory use does not grow with the length of the history.
+ */
+public class ExportCommits implements RestReadView<ProjectResource> {
+    private static final String NDJSON_MIMETYPE = "application/x-ndjson";
+    private static final Logger log = LoggerFactory.getLogger(ExportCommits.class);
+
+    /**
+     * How many commits of a first-parent export are walked before the walk's
+     * state is discarded.
+     */
+    private static final int FIRST_PARENT_BATCH_SIZE = 10000;
+
+    private final GitRepositoryManager repoManager;
+    private final Metrics metrics;
+    private String start = "master";
+    private boolean firstParent = false;
+    private boolean files = false;
+    private String fields = null;
+
+    /**
+     * Set the starting revision.
+     *
+     * This defaults to {@code master}.
+     *
+     * @param start The revision to start at.
+     */
+    @Option(name="--start", metaVar="REF", usage="Revision to start at.")
+    public void setStart(final String start) { this.start = start; }
+
+    /**
+     * Set whether or not to only follow the first parent of each commit.
+     * @param firstParent Whether or not to only follow first parents.
+     */
+    @Option(name="--first-parent", usage="Only export non-merge commits on the first-parent chain.")
+    public void setFirstParent(final boolean firstParent) { this.firstParent = firstParent; }
+
+    /**
+     * Set whether or not to include the files changed by each commit.
+     * @param files Whether or not to include the changed files.
+     */
+    @Option(name="--files", usage="Include the files changed by each commit.")
+    public void setFiles(final boolean files) { this.files = files; }
+
+    /**
+     * Set the fields to include for each commit.
+     *
+     * This accepts the same fields as {@code all-commits}.
+     *
+     * @param fields A comma-separated list of field names.
+     */
+    @Option(name="--fields", metaVar="FIELDS",
+            usage="Comma-separated fields to include (revision, parents, author, time, message, subject).")
+    public void setFields(final String fields) { this.fields = fields; }
+
+    /**
+     * Construct the ExportCommits resource.
+     * @param repoManager The repository manager.
+     * @param metrics The plugin metrics.
+     */
+    @Inject
+    public ExportCommits(final GitRepositoryManager repoManager, final Metrics metrics) {
+        this.repoManager = repoManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Return the history of the starting revision as a stream.
+     * @param parentResource The parent project resource.
+     * @return The stream of commits.
+     * @throws RestApiException If the options are invalid, the starting
+     *                          revision does not exist, or an error occurs
+     *                          reading the repository.
+     */
+    @Override
+    public BinaryResult apply(final ProjectResource parentResource) throws RestApiException {
+        final long startNanos = System.nanoTime();
+        final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
+        final Set<CommitListResource.Field> fieldSet = fields == null
+            ? CommitListResource.Field.DEFAULTS
+            : CommitListResource.Field.parse(fields);
+        final ObjectId startId;
+
+        // Resolve the start up front, so that a missing start is a 404
+        // instead of a broken stream.
+        try (final Repository repository = repoManager.openRepository(projectName)) {
+            startId = repository.resolve(String.format("%s^{commit}", start));
+        } catch (final RevisionSyntaxException | AmbiguousObjectException | IncorrectObjectTypeException
+                       | MissingObjectException e) {
+            metrics.recordNotFound(Metrics.COMMITS_EXPORT, projectName);
+
+            throw new ResourceNotFoundException();
+        } catch (final IOException e) {
+            log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
+
+            throw new RestApiException("Error reading repository: " + e.toString());
+        }
+
+        if (startId == null) {
+            metrics.recordNotFound(Metrics.COMMITS_EXPORT, projectName);
+
+            throw new ResourceNotFoundException();
+        }
+
+        final BinaryResult result = new BinaryResult() {
+            @Override
+            public void writeTo(final OutputStream stream) throws IOException {
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+
+                try (final Repository repository = repoManager.openRepository(projectName);
+                     final RevWalk walk = new RevWalk(repository)) {
+                    walk.setRetainBody(CommitListResource.Field.needBody(fieldSet));
+
+                    final long walked = firstParent
+                        ? exportFirstParent(repository, walk, startId, fieldSet, writer)
+                        : exportAll(repository, walk, startId, fieldSet, writer);
+
+                    metrics.recordCommitsWalked(projectName, walked);
+                } catch (final IOException e) {
+                    log.error(String.format("Error reading git repository for project '%s': %s",
+                                            projectName.get(), e), e);
+
+                    throw e;
+                }
+
+                writer.flush();
+            }
+        };
+
+        return metrics
+            .instrument(Metrics.COMMITS_EXPORT, projectName, startNanos, result)
+            .setContentType(NDJSON_MIMETYPE);
+    }
+
+    /**
+     * Export every non-merge commit reachable from the start.
+     * @param repository The repository.
+     * @param walk The walk to use.
+     * @param startId The starting commit.
+     * @param fieldSet The fields to include.
+     * @param writer The writer for the response.
+     * @return The number of commits walked.
+     * @throws IOException If an error occurs reading the repository or
+     *                     writing the response.
+     */
+    private long exportAll(final Repository repository, final RevWalk walk, final ObjectId startId,
+                           final Set<CommitListResource.Field> fieldSet, final Writer writer) throws IOException {
+        final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+        final ChangedFiles changedFiles = files ? new ChangedFiles(repository, walk.getObjectReader()) : null;
+        long walked = 0;
+        RevCommit c;
+
+        walk.markStart(walk.parseCommit(startId));
+
+        while ((c = walk.next()) != null) {
+            walked++;
+
+            if (c.getParentCount() == 1) {
+                write(gson, CommitListResource.newCommitInfo(walk, c, fieldSet, changedFiles), writer);
+            }
+
+            c.disposeBody();
+        }
+
+        return walked;
+    }
+
+    /**
+     * Export the non-merge commits on the first-parent chain of the start.
+     * @param repository The repository.
+     * @param walk The walk to use.
+     * @param startId The starting commit.
+     * @param fieldSet The fields to include.
+     * @param writer The writer for the response.
+     * @return The number of commits walked.
+     * @throws IOException If an error occurs reading the repository or
+     *                     writing the response.
+     */
+    private long exportFirstParent(final Repository repository, final RevWalk walk, final ObjectId startId,
+                                   final Set<CommitListResource.Field> fieldSet, final Writer writer) throws IOException {
+        final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+        final ChangedFiles changedFiles = files ? new ChangedFiles(repository, walk.getObjectReader()) : null;
+        long walked = 0;
+        RevCommit c = walk.parseCommit(startId);
+
+        while (c != null) {
+            walked++;
+
+            if (c.getParentCount() == 1) {
+                write(gson, CommitListResource.newCommitInfo(walk, c, fieldSet, changedFiles), writer);
+            }
+
+            c.disposeBody();
+
+            if (c.getParentCount() == 0) {
+                c = null;
+            } else if (walked % FIRST_PARENT_BATCH_SIZE == 0) {
+                // Drop every commit parsed so far, since none of them will
+                // be visited again.
+                final ObjectId next = c.getParent(0).copy();
+
+                walk.dispose();
+                c = walk.parseCommit(next);
+            } else {
+                c = walk.parseCommit(c.getParent(0));
+            }
+        }
+
+        return walked;
+    }
+
+    /**
+     * Write a commit as a single line of JSON.
+     * @param gson The JSON serializer.
+     * @param info The commit.
+     * @param writer The writer for the response.
+     * @throws IOException If an error occurs writing the response.
+     */
+    private static void write(final Gson gson, final CommitListResource.CommitInfo info, final Writer writer)
+        throws IOException {
+        gson.toJson(info, writer);
+        writer.write('\n');
+    }
+}
@@ -1,27 +1,32 @@
 package org.reviewboard.rbgerrit;
 
-import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
-
 import com.google.gerrit.extensions.restapi.*;
 import com.google.gerrit.reviewdb.client.Project;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.inject.Inject;
 import org.eclipse.jgit.errors.LargeObjectException;
 import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.IO;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 
 /**
  * A resource that returns the content of a file.
  */
-public class GetBlobContent implements RestReadView<BlobResource> {
+public class GetBlobContent implements ETagView<BlobResource> {
     final static Logger log = LoggerFactory.getLogger(GetBlobContent.class);
-    private final GitRepositoryManager repoManager;
+    private final Configuration config;
+    private final Metrics metrics;
+    private boolean raw = false;
+    private boolean compressed = false;
+    private long offset = 0;
+    private long length = -1;
 
     /* An upper bound on cached file sizes.
      *
@@ -35,48 +40,188 @@ public class GetBlobContent implements RestReadView<BlobResource> {
 
     /**
      * Contruct a new resource.
-     * @param repoManager The repository manager.
+     * @param config The plugin configuration.
+     * @param metrics The plugin metrics.
      */
     @Inject
-    public GetBlobContent(final GitRepositoryManager repoManager) {
-        this.repoManager = repoManager;
+    public GetBlobContent(final Configuration config, final Metrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
     }
 
     /**
-     * Return the content of the given blob as base64-encoded data.
+     * Set whether or not to return the raw content.
+     *
+     * By default, the content is returned base64-encoded.
+     *
+     * @param raw Whether or not to return the raw content.
+     */
+    @Option(name="--raw", usage="Return the raw blob content instead of base64-encoded content.")
+    public void setRaw(final boolean raw) { this.raw = raw; }
+
+    /**
+     * Set whether or not to return the content gzip-compressed.
+     *
+     * The compressed content is never base64-encoded, as that would undo
+     * much of the benefit of compressing it.
+     *
+     * @param compressed Whether or not to return the content gzip-compressed.
+     */
+    @Option(name="--compressed", usage="Return the raw blob content gzip-compressed, as application/gzip.")
+    public void setCompressed(final boolean compressed) { this.compressed = compressed; }
+
+    /**
+     * Set the offset of the first byte to return.
+     *
+     * Together with {@link #setLength(long)}, this allows clients to fetch
+     * large blobs in chunks.
+     *
+     * @param offset The offset of the first byte to return.
+     */
+    @Option(name="--offset", metaVar="BYTES", usage="Offset of the first byte to return.")
+    public void setOffset(final long offset) { this.offset = offset; }
+
+    /**
+     * Set the maximum number of bytes to return.
+     *
+     * This defaults to the remainder of the blob.
+     *
+     * @param length The maximum number of bytes to return.
+     */
+    @Option(name="--length", metaVar="BYTES", usage="Maximum number of bytes to return.")
+    public void setLength(final long length) { this.length = length; }
+
+    /**
+     * Return the ETag of the blob content.
+     *
+     * Blobs are immutable, so the ETag is derived from the blob ID alone.
+     * @param parentResource The parent BlobResource.
+     * @return The ETag.
+     */
+    @Override
+    public String getETag(final BlobResource parentResource) {
+        return String.format("\"%s-content\"", parentResource.getObjectId().getName());
+    }
+
+    /**
+     * Return the content of the given blob.
+     *
+     * The content is base64-encoded unless raw or compressed content was
+     * requested. If an offset or length was given, only that window of the
+     * blob is returned.
      * @param parentResource The parent BlobResource, containing the project
      *                       information and blob ID.
-     * @return The content of the blob as base64-encoded data.
+     * @return The content of the blob.
      * @throws RestApiException Raised if an IO error occurs while reading
-     *                          the blob content.
+     *                          the blob content, or if the requested window
+     *                          is invalid.
      */
     @Override
-    public BinaryResult apply(final BlobResource parentResource) throws RestApiException {
+    public Response<BinaryResult> apply(final BlobResource parentResource) throws RestApiException {
+        final long start = System.nanoTime();
+
+        if (offset < 0 || length < -1) {
+            throw new BadRequestException("The offset and length must not be negative.");
+        }
+
         final Project.NameKey projectName = parentResource.getProjectControl().getProject().getNameKey();
-        try (final Repository repository = repoManager.openRepository(projectName)) {
-            final ObjectLoader loader = repository.open(parentResource.getObjectId(), OBJ_BLOB);
-            BinaryResult result;
+        final ObjectLoader loader = parentResource.getLoader();
+        final long size = loader.getSize();
+
+        metrics.recordBlobSize(projectName, size);
+
+        if (offset > size) {
+            throw new BadRequestException(String.format(
+                "The offset %d is past the end of the blob (%d bytes).",
+                offset,
+                size
+            ));
+        }
+
+        final long windowLength = length == -1 ? size - offset : Math.min(length, size - offset);
+        BinaryResult result;
+
+        try {
+            final byte[] bytes = loader.getCachedBytes(MAX_CACHED_SIZE);
 
-            try {
-                final byte[] bytes = loader.getCachedBytes(MAX_CACHED_SIZE);
+            if (windowLength == size) {
                 result = BinaryResult.create(bytes);
-            } catch (final LargeObjectException e) {
+            } else {
                 result = new BinaryResult() {
                     @Override
                     public void writeTo(OutputStream stream) throws IOException {
-                        loader.copyTo(stream);
+                        stream.write(bytes, (int) offset, (int) windowLength);
                     }
                 };
             }
-
-            return result
-                .setContentLength(loader.getSize())
-                .setContentType("application/octet-stream")
-                .base64();
+        } catch (final LargeObjectException e) {
+            result = new BinaryResult() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    if (windowLength == size) {
+                        loader.copyTo(stream);
+                    } else {
+                        copyWindow(loader, offset, windowLength, stream);
+                    }
+                }
+            };
         } catch (final IOException e) {
-            log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
+            log.error(String.format("Error reading blob '%s': %s", parentResource.getObjectId().getName(), e), e);
 
             throw new RestApiException("Could not read repository: " + e.toString());
         }
+
+        result.setContentLength(windowLength);
+
+        if (compressed) {
+            result = metrics
+                .instrument(Metrics.BLOB_CONTENT, projectName, start, Compression.compressed(result))
+                .setContentType(Compression.GZIP_MIMETYPE)
+                .disableGzip();
+        } else {
+            result = metrics
+                .instrument(Metrics.BLOB_CONTENT, projectName, start, result)
+                .setContentType("application/octet-stream");
+
+            if (!raw) {
+                result = result.base64();
+            }
+        }
+
+        return Response
+            .ok(result)
+            .caching(config.getImmutableCacheControl());
+    }
+
+    /**
+     * Copy a window of a large blob to the output stream.
+     *
+     * Only the bytes up to the end of the window are inflated.
+     * @param loader The loader for the blob.
+     * @param offset The offset of the first byte to copy.
+     * @param length The number of bytes to copy.
+     * @param stream The output stream.
+     * @throws IOException If an error occurs reading the blob or writing the
+     *                     response.
+     */
+    private static void copyWindow(final ObjectLoader loader, final long offset, final long length,
+                                   final OutputStream stream) throws IOException {
+        try (final InputStream in = loader.openStream()) {
+            IO.skipFully(in, offset);
+
+            final byte[] buf = new byte[8192];
+            long remaining = length;
+
+            while (remaining > 0) {
+                final int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+
+                if (n < 0) {
+                    throw new EOFException();
+                }
+
+                stream.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
     }
 }
@@ -1,12 +1,61 @@
 package org.reviewboard.rbgerrit;
 
-import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.extensions.restapi.ETagView;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.inject.Inject;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 
 
 /**
  * An endpoint for determining if a blob exists in the repository.
+ *
+ * The size of the blob is also returned, and optionally whether it looks
+ * binary, so that clients can decide whether to fetch its content at all.
  */
-public class GetBlobInfo implements RestReadView<BlobResource> {
+public class GetBlobInfo implements ETagView<BlobResource> {
+    private static final Logger log = LoggerFactory.getLogger(GetBlobInfo.class);
+
+    private final Configuration config;
+    private boolean detectBinary = false;
+
+    /**
+     * Set whether or not to check if the blob looks binary.
+     *
+     * Only the start of a large blob is read to decide this.
+     *
+     * @param detectBinary Whether or not to check if the blob looks binary.
+     */
+    @Option(name="--detect-binary", usage="Include whether the blob looks binary.")
+    public void setDetectBinary(final boolean detectBinary) { this.detectBinary = detectBinary; }
+
+    /**
+     * Construct a new GetBlobInfo.
+     * @param config The plugin configuration.
+     */
+    @Inject
+    public GetBlobInfo(final Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * Return the ETag of the blob information.
+     *
+     * Blobs are immutable, so the ETag is derived from the blob ID alone.
+     * @param parentResource The parent file resource.
+     * @return The ETag.
+     */
+    @Override
+    public String getETag(final BlobResource parentResource) {
+        // The "2" distinguishes responses that include the size from older
+        // cached responses that do not.
+        return String.format("\"%s-info2\"", parentResource.getObjectId().getName());
+    }
+
     /**
      * Return information about a blob ID.
      *
@@ -14,10 +63,25 @@ public class GetBlobInfo implements RestReadView<BlobResource> {
      * doesn't exist, then the parent resource returns a 404.
      * @param parentResource The parent file resource.
      * @return Information about the object ID.
+     * @throws RestApiException If an error occurs reading the blob.
      */
     @Override
-    public BlobInfo apply(final BlobResource parentResource) {
-        return new BlobInfo(parentResource);
+    public Response<BlobInfo> apply(final BlobResource parentResource) throws RestApiException {
+        Boolean binary = null;
+
+        if (detectBinary) {
+            try {
+                binary = BinaryDetector.isBinary(parentResource.getLoader());
+            } catch (final IOException e) {
+                log.error(String.format("Error reading blob '%s': %s", parentResource.getObjectId().getName(), e), e);
+
+                throw new RestApiException("Could not read repository: " + e.toString());
+            }
+        }
+
+        return Response
+            .ok(new BlobInfo(parentResource, binary))
+            .caching(config.getImmutableCacheControl());
     }
 
     /**
@@ -25,14 +89,20 @@ public class GetBlobInfo implements RestReadView<BlobResource> {
      */
     public static class BlobInfo {
         public final String blobId;
+        public final long size;
+        public final Boolean binary;
 
         /**
          * Construct a new BlobInfo.
          * @param parentResource The parent resource, containing the object
          *                       ID of the blob in question.
+         * @param binary Whether or not the blob looks binary, or {@code null}
+         *               if this was not checked.
          */
-        public BlobInfo(final BlobResource parentResource) {
+        public BlobInfo(final BlobResource parentResource, final Boolean binary) {
             blobId = parentResource.getObjectId().getName();
+            size = parentResource.getSize();
+            this.binary = binary;
         }
     }
 
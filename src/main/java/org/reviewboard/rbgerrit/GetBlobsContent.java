@@ -0,0 +1,147 @@
+package org.reviewboard.rbgerrit;
+
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A resource that streams the content of many blobs in a single response.
+ *
+ * The response is a sequence of frames, one per requested blob and in request
+ * order. Each frame consists of an ASCII header line of the form
+ * {@code <id> <length>\n}, followed by exactly {@code <length>} bytes of raw
+ * blob content. The ID is the full blob ID when the blob was found, or the
+ * requested ID otherwise, in which case the length is {@code -1} and no
+ * content follows.
+ *
+ * Blobs are read with a single {@link ObjectReader} and copied directly to the
+ * response, so the full set of blobs is never held in memory.
+ */
+public class GetBlobsContent implements RestModifyView<ProjectResource, GetBlobsContent.Input> {
+    private static final int MAX_ENTRIES = 1000;
+    private static final Logger log = LoggerFactory.getLogger(GetBlobsContent.class);
+
+    private final GitRepositoryManager repoManager;
+    private final Metrics metrics;
+
+    /**
+     * The input to the request.
+     */
+    public static class Input {
+        public List<String> blobs;
+    }
+
+    /**
+     * Construct a new resource.
+     * @param repoManager The repository manager.
+     * @param metrics The plugin metrics.
+     */
+    @Inject
+    public GetBlobsContent(final GitRepositoryManager repoManager, final Metrics metrics) {
+        this.repoManager = repoManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Return the content of the requested blobs as a framed stream.
+     * @param parentResource The parent project resource.
+     * @param input The list of blob IDs.
+     * @return The framed content of the blobs.
+     * @throws RestApiException If the input is invalid.
+     */
+    @Override
+    public BinaryResult apply(final ProjectResource parentResource, final Input input) throws RestApiException {
+        final long start = System.nanoTime();
+
+        if (input == null || input.blobs == null || input.blobs.isEmpty()) {
+            throw new BadRequestException("At least one blob must be given.");
+        } else if (input.blobs.size() > MAX_ENTRIES) {
+            throw new BadRequestException(String.format("At most %d blobs may be fetched at once.", MAX_ENTRIES));
+        }
+
+        for (final String id : input.blobs) {
+            if (id == null || !AbbreviatedObjectId.isId(id)) {
+                throw new BadRequestException(String.format("Invalid blob ID '%s'.", id));
+            }
+        }
+
+        final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
+        final List<String> ids = new ArrayList<>(input.blobs);
+
+        final BinaryResult result = new BinaryResult() {
+            @Override
+            public void writeTo(final OutputStream stream) throws IOException {
+                try (final Repository repository = repoManager.openRepository(projectName);
+                     final ObjectReader reader = repository.newObjectReader()) {
+                    for (final String id : ids) {
+                        writeBlob(projectName, reader, id, stream);
+                    }
+                } catch (final IOException e) {
+                    log.error(String.format("Error reading git repository for project '%s': %s",
+                                            projectName.get(), e), e);
+
+                    throw e;
+                }
+            }
+        };
+
+        return metrics
+            .instrument(Metrics.BLOBS_CONTENT, projectName, start, result)
+            .setContentType("application/octet-stream");
+    }
+
+    /**
+     * Write a single frame to the output stream.
+     * @param projectName The name of the project.
+     * @param reader The shared object reader.
+     * @param id The requested blob ID.
+     * @param stream The output stream.
+     * @throws IOException If an error occurs reading the repository or
+     *                     writing the response.
+     */
+    private void writeBlob(final Project.NameKey projectName, final ObjectReader reader, final String id,
+                           final OutputStream stream) throws IOException {
+        final ObjectId objId = LookupBlobs.resolveId(reader, id);
+        ObjectLoader loader = null;
+
+        if (objId != null) {
+            try {
+                loader = reader.open(objId, OBJ_BLOB);
+            } catch (final MissingObjectException | IncorrectObjectTypeException e) {
+                loader = null;
+            }
+        }
+
+        if (loader == null) {
+            metrics.recordNotFound(Metrics.BLOBS_CONTENT, projectName);
+            stream.write(Constants.encodeASCII(String.format("%s -1\n", id)));
+        } else {
+            metrics.recordBlobSize(projectName, loader.getSize());
+            stream.write(Constants.encodeASCII(String.format("%s %d\n", objId.getName(), loader.getSize())));
+            loader.copyTo(stream);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.ETagView;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.project.CommitResource;
+import com.google.inject.Inject;
+import org.kohsuke.args4j.Option;
+
+
+/**
+ * A resource for computing the diff of a single file in a commit.
+ *
+ * Only the subtrees leading to the file are walked, so this is much cheaper
+ * than computing the full diff of a large commit.
+ */
+public class GetFileDiff implements ETagView<CommitResource> {
+    private final DiffResource diff;
+
+    /**
+     * Set the path of the file.
+     * @param path The path of the file, relative to the root of the
+     *             repository.
+     */
+    @Option(name="--path", metaVar="PATH", required=true, usage="The path of the file.")
+    public void setPath(final String path) { diff.addPath(path); }
+
+    /**
+     * Set whether or not to skip rename detection.
+     * @param noRenames Whether or not to skip rename detection.
+     */
+    @Option(name="--no-renames", usage="Do not detect renames.")
+    public void setNoRenames(final boolean noRenames) { diff.setNoRenames(noRenames); }
+
+    /**
+     * Set whether or not to return the diff gzip-compressed.
+     * @param compressed Whether or not to return the diff gzip-compressed.
+     */
+    @Option(name="--compressed", usage="Return the diff gzip-compressed, as application/gzip.")
+    public void setCompressed(final boolean compressed) { diff.setCompressed(compressed); }
+
+    /**
+     * Construct the GetFileDiff resource.
+     * @param diff The resource used to compute the diff.
+     */
+    @Inject
+    public GetFileDiff(final DiffResource diff) {
+        this.diff = diff;
+    }
+
+    /**
+     * Return the ETag of the file's diff.
+     * @param parentResource The parent commit resource.
+     * @return The ETag.
+     */
+    @Override
+    public String getETag(final CommitResource parentResource) {
+        return diff.getETag(parentResource);
+    }
+
+    /**
+     * Return the diff of the file in the given commit.
+     * @param parentResource The parent commit resource.
+     * @return The diff of the file.
+     * @throws RestApiException If an invalid commit or path is given.
+     */
+    @Override
+    public Response<BinaryResult> apply(final CommitResource parentResource) throws RestApiException {
+        return diff.apply(parentResource);
+    }
+}
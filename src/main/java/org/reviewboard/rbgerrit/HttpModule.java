@@ -0,0 +1,22 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.httpd.AllRequestFilter;
+import com.google.gerrit.httpd.plugins.HttpPluginModule;
+
+
+/**
+ * The rbgerrit HTTP module.
+ *
+ * This module is responsible for installing our servlet filters.
+ */
+public class HttpModule extends HttpPluginModule {
+    /**
+     * Install our servlet filters.
+     */
+    @Override
+    protected void configureServlets() {
+        DynamicSet.bind(binder(), AllRequestFilter.class).to(DiffThrottleFilter.class);
+        DynamicSet.bind(binder(), AllRequestFilter.class).to(DiffEncodingFilter.class);
+    }
+}
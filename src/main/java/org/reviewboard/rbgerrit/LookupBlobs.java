@@ -0,0 +1,265 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+import org.eclipse.jgit.errors.AmbiguousObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A resource that checks for the existence of many blobs at once.
+ *
+ * Each entry may either be a (possibly abbreviated) object ID or a
+ * {@code <revision>:<path>} pair. All entries are resolved using a single
+ * repository handle and {@link ObjectReader}, instead of one request per blob
+ * through {@link BlobsCollection}.
+ *
+ * The size of each blob is returned, as read from its object header. If
+ * {@code detectBinary} is set, whether each blob looks binary is returned as
+ * well, which reads the start of each large blob.
+ */
+public class LookupBlobs implements RestModifyView<ProjectResource, LookupBlobs.Input> {
+    private static final int MAX_ENTRIES = 1000;
+    private static final Logger log = LoggerFactory.getLogger(LookupBlobs.class);
+
+    private final GitRepositoryManager repoManager;
+    private final Metrics metrics;
+
+    /**
+     * The input to the lookup.
+     */
+    public static class Input {
+        public List<String> blobs;
+        public boolean detectBinary;
+    }
+
+    /**
+     * Construct the LookupBlobs resource.
+     * @param repoManager The repository manager.
+     * @param metrics The plugin metrics.
+     */
+    @Inject
+    public LookupBlobs(final GitRepositoryManager repoManager, final Metrics metrics) {
+        this.repoManager = repoManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Look up each of the requested blobs.
+     * @param parentResource The parent project resource.
+     * @param input The list of blob IDs and/or revision and path pairs.
+     * @return The result of the lookup for each entry, in request order.
+     * @throws RestApiException If the input is invalid or an error occurs
+     *                          reading the repository.
+     */
+    @Override
+    public Response<List<BlobLookupInfo>> apply(final ProjectResource parentResource, final Input input)
+        throws RestApiException {
+        if (input == null || input.blobs == null || input.blobs.isEmpty()) {
+            throw new BadRequestException("At least one blob must be given.");
+        } else if (input.blobs.size() > MAX_ENTRIES) {
+            throw new BadRequestException(String.format("At most %d blobs may be looked up at once.", MAX_ENTRIES));
+        }
+
+        final long start = System.nanoTime();
+        final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
+
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final ObjectReader reader = repository.newObjectReader()) {
+            final Map<String, ObjectId> trees = new HashMap<>();
+            final List<BlobLookupInfo> results = new ArrayList<>(input.blobs.size());
+
+            for (final String spec : input.blobs) {
+                final BlobLookupInfo info = lookup(repository, reader, trees, spec, input.detectBinary);
+
+                if (!info.found) {
+                    metrics.recordNotFound(Metrics.BLOBS_LOOKUP, projectName);
+                }
+
+                results.add(info);
+            }
+
+            return Response.ok(results);
+        } catch (final IOException e) {
+            log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
+
+            throw new RestApiException("Error reading repository: " + e.toString());
+        } finally {
+            metrics.recordLatency(Metrics.BLOBS_LOOKUP, projectName, start);
+        }
+    }
+
+    /**
+     * Look up a single entry.
+     * @param repository The repository.
+     * @param reader The shared object reader.
+     * @param trees A cache of revisions to their root trees, so that each
+     *              revision is only resolved once per request.
+     * @param spec The object ID or {@code <revision>:<path>} pair.
+     * @param detectBinary Whether or not to check if the blob looks binary.
+     * @return The result of the lookup.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private BlobLookupInfo lookup(final Repository repository, final ObjectReader reader,
+                                  final Map<String, ObjectId> trees, final String spec,
+                                  final boolean detectBinary) throws IOException {
+        if (spec == null) {
+            return BlobLookupInfo.missing(null);
+        }
+
+        final int sep = spec.indexOf(':');
+        final ObjectId objId;
+
+        if (sep > 0) {
+            final String revision = spec.substring(0, sep);
+            final String path = spec.substring(sep + 1);
+
+            if (!trees.containsKey(revision)) {
+                trees.put(revision, resolveTree(repository, revision));
+            }
+
+            final ObjectId treeId = trees.get(revision);
+
+            if (treeId == null || path.isEmpty()) {
+                return BlobLookupInfo.missing(spec);
+            }
+
+            try (final TreeWalk walk = TreeWalk.forPath(reader, path, treeId)) {
+                objId = walk == null ? null : walk.getObjectId(0);
+            }
+        } else {
+            objId = resolveId(reader, spec);
+        }
+
+        if (objId == null) {
+            return BlobLookupInfo.missing(spec);
+        }
+
+        try {
+            final ObjectLoader loader = reader.open(objId);
+
+            if (loader.getType() != Constants.OBJ_BLOB) {
+                return new BlobLookupInfo(spec, objId, loader.getType(), null, null);
+            }
+
+            return new BlobLookupInfo(spec, objId, loader.getType(), loader.getSize(),
+                                      detectBinary ? BinaryDetector.isBinary(loader) : null);
+        } catch (final MissingObjectException e) {
+            return BlobLookupInfo.missing(spec);
+        }
+    }
+
+    /**
+     * Resolve a revision to its root tree.
+     * @param repository The repository.
+     * @param revision The revision.
+     * @return The ID of the root tree, or {@code null} if the revision does
+     *         not exist.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    static ObjectId resolveTree(final Repository repository, final String revision) throws IOException {
+        try {
+            return repository.resolve(String.format("%s^{tree}", revision));
+        } catch (final RevisionSyntaxException | MissingObjectException | AmbiguousObjectException
+                       | IncorrectObjectTypeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Resolve a (possibly abbreviated) object ID.
+     * @param reader The shared object reader.
+     * @param id The object ID.
+     * @return The full object ID, or {@code null} if the ID is invalid, does
+     *         not exist, or is ambiguous.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    static ObjectId resolveId(final ObjectReader reader, final String id) throws IOException {
+        if (ObjectId.isId(id)) {
+            return ObjectId.fromString(id);
+        } else if (!AbbreviatedObjectId.isId(id)) {
+            return null;
+        }
+
+        final Collection<ObjectId> matches = reader.resolve(AbbreviatedObjectId.fromString(id));
+        return matches.size() == 1 ? matches.iterator().next() : null;
+    }
+
+    /**
+     * The result of looking up a single blob.
+     */
+    public static class BlobLookupInfo {
+        public final String id;
+        public final boolean found;
+        public final String blobId;
+        public final String type;
+        public final Long size;
+        public final Boolean binary;
+
+        /**
+         * Construct a new BlobLookupInfo for an object that exists.
+         * @param id The requested ID.
+         * @param objId The resolved object ID.
+         * @param type The type of the object.
+         * @param size The size of the blob, or {@code null} if the object is
+         *             not a blob.
+         * @param binary Whether or not the blob looks binary, or {@code null}
+         *               if this was not checked.
+         */
+        BlobLookupInfo(final String id, final ObjectId objId, final int type, final Long size,
+                       final Boolean binary) {
+            this.id = id;
+            this.found = type == Constants.OBJ_BLOB;
+            this.blobId = objId.getName();
+            this.type = Constants.typeString(type);
+            this.size = size;
+            this.binary = binary;
+        }
+
+        /**
+         * Construct a new BlobLookupInfo for an object that does not exist.
+         * @param id The requested ID.
+         */
+        private BlobLookupInfo(final String id) {
+            this.id = id;
+            this.found = false;
+            this.blobId = null;
+            this.type = null;
+            this.size = null;
+            this.binary = null;
+        }
+
+        /**
+         * Return a BlobLookupInfo for an object that does not exist.
+         * @param id The requested ID.
+         * @return The BlobLookupInfo.
+         */
+        static BlobLookupInfo missing(final String id) {
+            return new BlobLookupInfo(id);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A resource that resolves many paths at a single revision at once.
+ *
+ * All paths are resolved in a single walk of the revision's tree, which only
+ * enters the subtrees leading to the requested paths. This is much cheaper
+ * than resolving each {@code <revision>:<path>} pair separately, which walks
+ * from the root tree every time.
+ *
+ * If {@code detectBinary} is set, whether each blob looks binary is returned
+ * as well, which reads the start of each large blob.
+ */
+public class LookupPaths implements RestModifyView<ProjectResource, LookupPaths.Input> {
+    private static final int MAX_ENTRIES = 1000;
+    private static final Logger log = LoggerFactory.getLogger(LookupPaths.class);
+
+    private final GitRepositoryManager repoManager;
+    private final Metrics metrics;
+
+    /**
+     * The input to the lookup.
+     */
+    public static class Input {
+        public String revision;
+        public List<String> paths;
+        public boolean detectBinary;
+    }
+
+    /**
+     * Construct the LookupPaths resource.
+     * @param repoManager The repository manager.
+     * @param metrics The plugin metrics.
+     */
+    @Inject
+    public LookupPaths(final GitRepositoryManager repoManager, final Metrics metrics) {
+        this.repoManager = repoManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Look up each of the requested paths.
+     * @param parentResource The parent project resource.
+     * @param input The revision and the list of paths.
+     * @return The result of the lookup for each path, in request order.
+     * @throws RestApiException If the input is invalid, the revision does not
+     *                          exist, or an error occurs reading the
+     *                          repository.
+     */
+    @Override
+    public Response<List<PathInfo>> apply(final ProjectResource parentResource, final Input input)
+        throws RestApiException {
+        if (input == null || input.revision == null || input.revision.isEmpty()) {
+            throw new BadRequestException("A revision must be given.");
+        } else if (input.paths == null || input.paths.isEmpty()) {
+            throw new BadRequestException("At least one path must be given.");
+        } else if (input.paths.size() > MAX_ENTRIES) {
+            throw new BadRequestException(String.format("At most %d paths may be looked up at once.", MAX_ENTRIES));
+        }
+
+        for (final String path : input.paths) {
+            if (path == null || path.isEmpty() || path.startsWith("/") || path.endsWith("/")) {
+                throw new BadRequestException(String.format("Invalid path '%s'.", path));
+            }
+        }
+
+        final long start = System.nanoTime();
+        final Project.NameKey projectName = parentResource.getControl().getProject().getNameKey();
+
+        try (final Repository repository = repoManager.openRepository(projectName);
+             final ObjectReader reader = repository.newObjectReader()) {
+            final ObjectId treeId = LookupBlobs.resolveTree(repository, input.revision);
+
+            if (treeId == null) {
+                metrics.recordNotFound(Metrics.PATHS_LOOKUP, projectName);
+
+                throw new ResourceNotFoundException(input.revision);
+            }
+
+            final Map<String, PathInfo> found = walk(reader, treeId, new HashSet<>(input.paths), input.detectBinary);
+            final List<PathInfo> results = new ArrayList<>(input.paths.size());
+
+            for (final String path : input.paths) {
+                PathInfo info = found.get(path);
+
+                if (info == null) {
+                    metrics.recordNotFound(Metrics.PATHS_LOOKUP, projectName);
+                    info = PathInfo.missing(path);
+                }
+
+                results.add(info);
+            }
+
+            return Response.ok(results);
+        } catch (final IOException e) {
+            log.error(String.format("Error reading git repository for project '%s': %s", projectName.get(), e), e);
+
+            throw new RestApiException("Error reading repository: " + e.toString());
+        } finally {
+            metrics.recordLatency(Metrics.PATHS_LOOKUP, projectName, start);
+        }
+    }
+
+    /**
+     * Find the requested paths in a tree.
+     *
+     * Subtrees are only entered if they lead to a requested path. A requested
+     * path that names a subtree is reported without entering it.
+     * @param reader The object reader.
+     * @param treeId The ID of the root tree.
+     * @param paths The requested paths.
+     * @param detectBinary Whether or not to check if each blob looks binary.
+     * @return The entries that were found, keyed by path.
+     * @throws IOException If an error occurs reading the repository.
+     */
+    private static Map<String, PathInfo> walk(final ObjectReader reader, final ObjectId treeId,
+                                              final Set<String> paths, final boolean detectBinary)
+        throws IOException {
+        final Map<String, PathInfo> found = new HashMap<>();
+
+        try (final TreeWalk walk = new TreeWalk(reader)) {
+            walk.addTree(treeId);
+            walk.setRecursive(false);
+            walk.setFilter(PathFilterGroup.createFromStrings(paths));
+
+            while (walk.next()) {
+                final String path = walk.getPathString();
+
+                if (paths.contains(path)) {
+                    final ObjectId objId = walk.getObjectId(0);
+                    final FileMode mode = walk.getFileMode(0);
+
+                    if (mode.getObjectType() != Constants.OBJ_BLOB) {
+                        found.put(path, new PathInfo(path, objId, mode, null, null));
+                    } else if (detectBinary) {
+                        final ObjectLoader loader = reader.open(objId, Constants.OBJ_BLOB);
+
+                        found.put(path, new PathInfo(path, objId, mode, loader.getSize(),
+                                                     BinaryDetector.isBinary(loader)));
+                    } else {
+                        found.put(path, new PathInfo(path, objId, mode,
+                                                     reader.getObjectSize(objId, Constants.OBJ_BLOB), null));
+                    }
+                } else if (walk.isSubtree()) {
+                    walk.enterSubtree();
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * The result of looking up a single path.
+     */
+    public static class PathInfo {
+        public final String path;
+        public final boolean found;
+        public final String blobId;
+        public final String type;
+        public final String mode;
+        public final Long size;
+        public final Boolean binary;
+
+        /**
+         * Construct a new PathInfo for a path that exists.
+         *
+         * Only blobs (regular files and symbolic links) are considered to
+         * be found. For trees and submodules, the object ID and type are
+         * still returned.
+         * @param path The requested path.
+         * @param objId The ID of the object at the path.
+         * @param mode The mode of the entry.
+         * @param size The size of the blob, or {@code null} if the entry is
+         *             not a blob.
+         * @param binary Whether or not the blob looks binary, or {@code null}
+         *               if this was not checked.
+         */
+        PathInfo(final String path, final ObjectId objId, final FileMode mode, final Long size,
+                 final Boolean binary) {
+            this.path = path;
+            this.found = mode.getObjectType() == Constants.OBJ_BLOB;
+            this.blobId = objId.getName();
+            this.type = Constants.typeString(mode.getObjectType());
+            this.mode = String.format("%06o", mode.getBits());
+            this.size = size;
+            this.binary = binary;
+        }
+
+        /**
+         * Construct a new PathInfo for a path that does not exist.
+         * @param path The requested path.
+         */
+        private PathInfo(final String path) {
+            this.path = path;
+            this.found = false;
+            this.blobId = null;
+            this.type = null;
+            this.mode = null;
+            this.size = null;
+            this.binary = null;
+        }
+
+        /**
+         * Return a PathInfo for a path that does not exist.
+         * @param path The requested path.
+         * @return The PathInfo.
+         */
+        static PathInfo missing(final String path) {
+            return new PathInfo(path);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Counter2;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Metrics for the plugin's endpoints and caches.
+ *
+ * These are registered with Gerrit's metric framework, and so are exported
+ * through whichever metrics backends Gerrit is configured with, under the
+ * {@code plugins/gerrit-reviewboard/} prefix.
+ */
+@Singleton
+public class Metrics {
+    static final String ALL_COMMITS = "all-commits";
+    static final String BLOBS = "blobs";
+    static final String BLOB_CONTENT = "blob-content";
+    static final String COMMITS_EXPORT = "commits-export";
+    static final String BLOBS_CONTENT = "blobs-content";
+    static final String BLOBS_LOOKUP = "blobs-lookup";
+    static final String DIFF = "diff";
+    static final String PATHS_LOOKUP = "paths-lookup";
+
+    private final Timer2<String, String> latency;
+    private final Counter2<String, String> bytesServed;
+    private final Counter2<String, String> notFound;
+    private final Histogram1<String> blobSize;
+    private final Histogram1<String> diffSize;
+    private final Histogram1<String> commitsWalked;
+    private final Counter1<String> cacheHits;
+    private final Counter1<String> cacheMisses;
+    private final Counter1<String> diffsThrottled;
+
+    /**
+     * Construct the Metrics.
+     * @param metricMaker The factory for Gerrit metrics.
+     */
+    @Inject
+    public Metrics(final MetricMaker metricMaker) {
+        final Field<String> endpointField = Field.ofString("endpoint", "The REST endpoint");
+        final Field<String> projectField = Field.ofString("project", "The name of the project");
+        final Field<String> cacheField = Field.ofString("cache", "The name of the cache");
+
+        latency = metricMaker.newTimer(
+            "latency",
+            new Description("Time taken to serve a request, including streaming the response")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            endpointField,
+            projectField);
+        bytesServed = metricMaker.newCounter(
+            "bytes_served",
+            new Description("Bytes of binary content served")
+                .setRate()
+                .setUnit(Units.BYTES),
+            endpointField,
+            projectField);
+        notFound = metricMaker.newCounter(
+            "not_found",
+            new Description("Requests for objects that do not exist")
+                .setRate(),
+            endpointField,
+            projectField);
+        blobSize = metricMaker.newHistogram(
+            "blob_size",
+            new Description("Size of blobs whose content was requested")
+                .setCumulative()
+                .setUnit(Units.BYTES),
+            projectField);
+        diffSize = metricMaker.newHistogram(
+            "diff_size",
+            new Description("Size of diffs served")
+                .setCumulative()
+                .setUnit(Units.BYTES),
+            projectField);
+        commitsWalked = metricMaker.newHistogram(
+            "commits_walked",
+            new Description("Commits visited to build a page of commits")
+                .setCumulative()
+                .setUnit("commits"),
+            projectField);
+        cacheHits = metricMaker.newCounter(
+            "cache_hits",
+            new Description("Lookups that were answered by a plugin cache")
+                .setRate(),
+            cacheField);
+        cacheMisses = metricMaker.newCounter(
+            "cache_misses",
+            new Description("Lookups that were not answered by a plugin cache")
+                .setRate(),
+            cacheField);
+        diffsThrottled = metricMaker.newCounter(
+            "diffs_throttled",
+            new Description("Diff requests rejected because too many diffs were being computed")
+                .setRate(),
+            projectField);
+    }
+
+    /**
+     * Record the time taken to serve a request.
+     * @param endpoint The endpoint.
+     * @param projectName The name of the project.
+     * @param startNanos The value of {@link System#nanoTime()} when the
+     *                   request started.
+     */
+    void recordLatency(final String endpoint, final Project.NameKey projectName, final long startNanos) {
+        latency.record(endpoint, projectName.get(), System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a request for an object that does not exist.
+     * @param endpoint The endpoint.
+     * @param projectName The name of the project.
+     */
+    void recordNotFound(final String endpoint, final Project.NameKey projectName) {
+        notFound.increment(endpoint, projectName.get());
+    }
+
+    /**
+     * Record the size of a blob whose content was requested.
+     * @param projectName The name of the project.
+     * @param size The size of the blob in bytes.
+     */
+    void recordBlobSize(final Project.NameKey projectName, final long size) {
+        blobSize.record(projectName.get(), size);
+    }
+
+    /**
+     * Record the size of a diff that was served.
+     * @param projectName The name of the project.
+     * @param size The size of the diff in bytes.
+     */
+    void recordDiffSize(final Project.NameKey projectName, final long size) {
+        diffSize.record(projectName.get(), size);
+    }
+
+    /**
+     * Record the number of commits visited to build a page.
+     * @param projectName The name of the project.
+     * @param count The number of commits.
+     */
+    void recordCommitsWalked(final Project.NameKey projectName, final long count) {
+        commitsWalked.record(projectName.get(), count);
+    }
+
+    /**
+     * Record the outcome of a cache lookup.
+     * @param cache The name of the cache.
+     * @param hit Whether or not the lookup was answered by the cache.
+     */
+    void recordCacheLookup(final String cache, final boolean hit) {
+        if (hit) {
+            cacheHits.increment(cache);
+        } else {
+            cacheMisses.increment(cache);
+        }
+    }
+
+    /**
+     * Record a diff request that was rejected by the {@link DiffThrottle}.
+     * @param projectName The name of the project.
+     */
+    void recordThrottled(final Project.NameKey projectName) {
+        diffsThrottled.increment(projectName.get());
+    }
+
+    /**
+     * Instrument a binary response.
+     *
+     * The bytes written are counted, and the latency of the request is
+     * recorded once the response has been written in full.
+     * @param endpoint The endpoint.
+     * @param projectName The name of the project.
+     * @param startNanos The value of {@link System#nanoTime()} when the
+     *                   request started.
+     * @param result The response. Its content type and encoding must be set
+     *               on the returned result instead.
+     * @return The instrumented response.
+     */
+    BinaryResult instrument(final String endpoint, final Project.NameKey projectName, final long startNanos,
+                            final BinaryResult result) {
+        return new BinaryResult() {
+            @Override
+            public void writeTo(final OutputStream stream) throws IOException {
+                final CountingOutputStream counter = new CountingOutputStream(stream);
+
+                try {
+                    result.writeTo(counter);
+                } finally {
+                    bytesServed.incrementBy(endpoint, projectName.get(), counter.getCount());
+                    recordLatency(endpoint, projectName, startNanos);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                result.close();
+            }
+        }.setContentLength(result.getContentLength());
+    }
+}
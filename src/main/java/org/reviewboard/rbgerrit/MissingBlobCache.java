@@ -0,0 +1,164 @@
+package org.reviewboard.rbgerrit;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A short-lived cache of blob lookups that found nothing.
+ *
+ * Clients often probe for the same blobs that do not exist in a repository.
+ * Remembering these misses lets them be answered without opening the
+ * repository and searching every pack index.
+ *
+ * Entries expire after a short time, and are invalidated for a project as
+ * soon as any of its refs are updated, since that is when new objects may
+ * have arrived. The number of entries and their lifetime are configured in
+ * the {@code [cache "gerrit-reviewboard.missing_blobs"]} section of
+ * {@code gerrit.config}, using the {@code memoryLimit} and {@code maxAge}
+ * settings.
+ */
+@Singleton
+public class MissingBlobCache implements GitReferenceUpdatedListener {
+    static final String NAME = "missing_blobs";
+
+    /**
+     * The default maximum number of entries in the cache.
+     */
+    private static final long DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The default lifetime of an entry, in seconds.
+     */
+    private static final long DEFAULT_MAX_AGE = 60;
+
+    /**
+     * The value stored for each cached miss is the generation of its project
+     * at the time of the miss. Bumping a project's generation invalidates all
+     * of its entries at once.
+     */
+    private final Cache<Key, Long> cache;
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    /**
+     * Return the module that registers the cache.
+     * @return The module.
+     */
+    static CacheModule module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+                cache(NAME, Key.class, Long.class)
+                    .maximumWeight(DEFAULT_MAX_ENTRIES)
+                    .expireAfterWrite(DEFAULT_MAX_AGE, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    /**
+     * Construct the MissingBlobCache.
+     * @param cache The underlying cache.
+     */
+    @Inject
+    MissingBlobCache(@Named(NAME) final Cache<Key, Long> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Return the current generation of a project.
+     *
+     * This must be read before looking a blob up, and passed to
+     * {@link #add(Project.NameKey, String, long)} if the lookup finds
+     * nothing. That way, a miss that races with a ref update is never
+     * recorded as current.
+     * @param projectName The name of the project.
+     * @return The generation of the project.
+     */
+    long getGeneration(final Project.NameKey projectName) {
+        return generation(projectName.get()).get();
+    }
+
+    /**
+     * Return whether a lookup is known to have found nothing.
+     * @param projectName The name of the project.
+     * @param id The requested blob ID.
+     * @param generation The current generation of the project.
+     * @return Whether or not the blob is known to be missing.
+     */
+    boolean isMissing(final Project.NameKey projectName, final String id, final long generation) {
+        final Long cached = cache.getIfPresent(new Key(projectName.get(), id));
+        return cached != null && cached == generation;
+    }
+
+    /**
+     * Record that a lookup found nothing.
+     * @param projectName The name of the project.
+     * @param id The requested blob ID.
+     * @param generation The generation of the project before the lookup.
+     */
+    void add(final Project.NameKey projectName, final String id, final long generation) {
+        cache.put(new Key(projectName.get(), id), generation);
+    }
+
+    /**
+     * Invalidate the cached misses of a project when its refs are updated.
+     * @param event The ref update event.
+     */
+    @Override
+    public void onGitReferenceUpdated(final Event event) {
+        generation(event.getProjectName()).incrementAndGet();
+    }
+
+    /**
+     * Return the current generation of a project.
+     * @param project The name of the project.
+     * @return The generation of the project.
+     */
+    private AtomicLong generation(final String project) {
+        return generations.computeIfAbsent(project, p -> new AtomicLong());
+    }
+
+    /**
+     * The key for a cached miss.
+     */
+    static class Key {
+        private final String project;
+        private final String id;
+
+        /**
+         * Construct a new Key.
+         * @param project The name of the project.
+         * @param id The requested blob ID.
+         */
+        Key(final String project, final String id) {
+            this.project = project;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return project.equals(other.project) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, id);
+        }
+    }
+}
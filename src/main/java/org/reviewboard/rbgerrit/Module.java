@@ -4,8 +4,11 @@ import static com.google.gerrit.server.project.CommitResource.COMMIT_KIND;
 import static com.google.gerrit.server.project.BranchResource.PROJECT_KIND;
 import static org.reviewboard.rbgerrit.BlobResource.BLOB_KIND;
 
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.inject.AbstractModule;
 
 
@@ -20,12 +23,32 @@ public class Module extends AbstractModule {
      */
     @Override
     protected void configure() {
+        install(DiffCache.module());
+        install(CommitIndex.module());
+        install(MissingBlobCache.module());
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(CommitIndex.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(MissingBlobCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(DiffPrecomputer.class);
+
+        install(new LifecycleModule() {
+            @Override
+            protected void configure() {
+                listener().to(CommitIndex.class);
+                listener().to(DiffPrecomputer.class);
+            }
+        });
+
         install(new RestApiModule() {
             @Override
             protected void configure() {
                 get(COMMIT_KIND, "diff").to(DiffResource.class);
+                get(COMMIT_KIND, "file-diff").to(GetFileDiff.class);
                 get(PROJECT_KIND, "all-commits").to(CommitListResource.class);
+                get(PROJECT_KIND, "commits-export").to(ExportCommits.class);
                 child(PROJECT_KIND, "blobs").to(BlobsCollection.class);
+                post(PROJECT_KIND, "blobs-lookup").to(LookupBlobs.class);
+                post(PROJECT_KIND, "blobs-content").to(GetBlobsContent.class);
+                post(PROJECT_KIND, "paths-lookup").to(LookupPaths.class);
 
                 DynamicMap.mapOf(binder(), BLOB_KIND);
                 get(BLOB_KIND, "/").to(GetBlobInfo.class);